@@ -0,0 +1,259 @@
+package junctionbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Autosave class saves to a file periodically on a background thread, so that saving never blocks the thread that handles
+ * touch input. Each save is written to a temporary file, synced to the disk, and then moved over the saved file in one step, so
+ * a save that is interrupted, even by a crash, leaves either the previous save or the new one.
+ * 
+ * <p>The move uses java.nio.file.Files, which is found by reflection because older versions of Android do not have it. Without
+ * it the temporary file is renamed, which also replaces the saved file in one step on the file systems that Android uses. The
+ * saved file is never deleted first.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+abstract class Autosave implements Runnable {
+    /**
+     * The File.toPath() method, or null if java.nio.file is not available.
+     */
+    private static final Method TO_PATH;
+    
+    /**
+     * The Files.move(Path, Path, CopyOption...) method, or null if java.nio.file is not available.
+     */
+    private static final Method MOVE;
+    
+    /**
+     * The options for replacing the saved file atomically.
+     */
+    private static final Object ATOMIC_OPTIONS;
+    
+    /**
+     * The options for replacing the saved file on file systems that cannot move atomically.
+     */
+    private static final Object REPLACE_OPTIONS;
+    
+    static {
+        Method toPath = null;
+        Method move = null;
+        Object atomic = null;
+        Object replace = null;
+        
+        try {
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> option = Class.forName("java.nio.file.CopyOption");
+            Class<?> standard = Class.forName("java.nio.file.StandardCopyOption");
+            Object replaceExisting = standard.getField("REPLACE_EXISTING").get(null);
+            
+            atomic = Array.newInstance(option, 2);
+            Array.set(atomic, 0, replaceExisting);
+            Array.set(atomic, 1, standard.getField("ATOMIC_MOVE").get(null));
+            
+            replace = Array.newInstance(option, 1);
+            Array.set(replace, 0, replaceExisting);
+            
+            move = Class.forName("java.nio.file.Files").getMethod("move", path, path, replace.getClass());
+            toPath = File.class.getMethod("toPath");
+        }
+        catch (Exception e) {
+            // Fall back to renaming
+            toPath = null;
+            move = null;
+        }
+        
+        TO_PATH = toPath;
+        MOVE = move;
+        ATOMIC_OPTIONS = atomic;
+        REPLACE_OPTIONS = replace;
+    }
+    
+    /**
+     * The file to save to.
+     */
+    private final File file;
+    
+    /**
+     * The file that each save is written to before it replaces the saved file.
+     */
+    private final File tempFile;
+    
+    /**
+     * The thread that runs the saves.
+     */
+    private ScheduledExecutorService executor;
+    
+    /**
+     * Constructs a new Autosave for the specified file.
+     * 
+     * @param file the file to save to
+     */
+    Autosave(File file) {
+        this.file = file;
+        tempFile = new File(file.getPath() + ".tmp");
+    }
+    
+    /**
+     * Writes a save to the specified stream and closes it.
+     * 
+     * @param output the stream to write to
+     * @return true if the save was written completely
+     */
+    abstract boolean save(OutputStream output);
+    
+    /**
+     * Starts saving with the specified time between the end of one save and the start of the next.
+     * 
+     * @param period the time between saves
+     * @param unit the unit of the time between saves
+     */
+    void start(long period, TimeUnit unit) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "junctionbox-autosave");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                
+                return t;
+            }
+        });
+        
+        executor.scheduleWithFixedDelay(this, period, period, unit);
+    }
+    
+    /**
+     * Stops saving. A save that is in progress is allowed to finish.
+     */
+    void stop() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Runs one save. A save that fails is dropped and the previous save is kept.
+     */
+    public void run() {
+        FileOutputStream output = null;
+        boolean saved = false;
+        
+        try {
+            output = new FileOutputStream(tempFile);
+            saved = save(new SyncedOutputStream(output)) && replace();
+        }
+        catch (IOException e) {
+            // Do nothing
+        }
+        catch (RuntimeException e) {
+            // An exception would cancel every later save, so only this one is lost
+            e.printStackTrace();
+        }
+        finally {
+            if (!saved) {
+                if (output != null) {
+                    try {
+                        output.close();
+                    }
+                    catch (IOException e) {
+                        // Do nothing
+                    }
+                }
+                
+                tempFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Moves the temporary file over the saved file.
+     * 
+     * @return true if the saved file was replaced
+     */
+    private boolean replace() {
+        if (MOVE == null) {
+            return tempFile.renameTo(file);
+        }
+        
+        try {
+            Object from = TO_PATH.invoke(tempFile);
+            Object to = TO_PATH.invoke(file);
+            
+            try {
+                MOVE.invoke(null, from, to, ATOMIC_OPTIONS);
+            }
+            catch (InvocationTargetException e) {
+                // Some file systems cannot move atomically but can still replace the saved file
+                if (!e.getCause().getClass().getName().equals("java.nio.file.AtomicMoveNotSupportedException")) {
+                    return false;
+                }
+                
+                MOVE.invoke(null, from, to, REPLACE_OPTIONS);
+            }
+            
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+    
+    /**
+     * The SyncedOutputStream class forces the bytes of a file to the disk when the stream is closed, so that a crash after the
+     * file replaces the saved file cannot leave the saved file empty.
+     */
+    private static final class SyncedOutputStream extends FilterOutputStream {
+        /**
+         * The file stream.
+         */
+        private final FileOutputStream file;
+        
+        /**
+         * Constructs a new SyncedOutputStream.
+         * 
+         * @param file the file stream
+         */
+        SyncedOutputStream(FileOutputStream file) {
+            super(file);
+            this.file = file;
+        }
+        
+        /**
+         * Writes bytes straight to the file stream rather than one at a time.
+         * 
+         * @param b the bytes
+         * @param off the offset of the first byte
+         * @param len the number of bytes
+         * @throws IOException if the bytes cannot be written
+         */
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(b, off, len);
+        }
+        
+        /**
+         * Syncs the file to the disk and closes it.
+         * 
+         * @throws IOException if the file cannot be synced or closed
+         */
+        public void close() throws IOException {
+            try {
+                file.flush();
+                file.getFD().sync();
+            }
+            finally {
+                file.close();
+            }
+        }
+    }
+}
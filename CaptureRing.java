@@ -0,0 +1,188 @@
+package junctionbox;
+
+/**
+ * The CaptureRing class keeps the most recent Contact events in fixed-size primitive arrays, overwriting the oldest event when
+ * it is full, so that a gesture can be kept after it was performed. Adding an event only writes array slots and never
+ * allocates.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class CaptureRing {
+    /**
+     * The type of each event.
+     */
+    private final byte[] types;
+    
+    /**
+     * The Contact identifier of each event.
+     */
+    private final int[] ids;
+    
+    /**
+     * The x value of each event.
+     */
+    private final float[] xs;
+    
+    /**
+     * The y value of each event.
+     */
+    private final float[] ys;
+    
+    /**
+     * The nanosecond tick of each event.
+     */
+    private final long[] ticks;
+    
+    /**
+     * The mask for a slot in the arrays.
+     */
+    private final int mask;
+    
+    /**
+     * The number of events ever added.
+     */
+    private long count = 0;
+    
+    /**
+     * Constructs a new CaptureRing that holds at least the specified number of events.
+     * 
+     * @param capacity the number of events, which is rounded up to a power of two
+     */
+    CaptureRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        
+        types = new byte[size];
+        ids = new int[size];
+        xs = new float[size];
+        ys = new float[size];
+        ticks = new long[size];
+        mask = size - 1;
+    }
+    
+    /**
+     * Returns the number of events that this ring holds.
+     * 
+     * @return the capacity
+     */
+    int capacity() {
+        return mask + 1;
+    }
+    
+    /**
+     * Adds an event, overwriting the oldest event if the ring is full.
+     * 
+     * @param type the event type
+     * @param id the Contact identifier
+     * @param x the x value
+     * @param y the y value
+     * @param tick the nanosecond tick of the event
+     */
+    synchronized void add(int type, int id, float x, float y, long tick) {
+        int i = (int)count & mask;
+        types[i] = (byte)type;
+        ids[i] = id;
+        xs[i] = x;
+        ys[i] = y;
+        ticks[i] = tick;
+        count++;
+    }
+    
+    /**
+     * Copies the events from the specified tick onwards into a new store, timed from that tick. Contacts that were already down
+     * at the start get an add event at the start: Contacts that are held with the specified identifiers and positions, and
+     * Contacts whose first event in the window is an update or a remove. A remove is dropped if the ring no longer holds a
+     * position for its Contact.
+     * 
+     * @param from the nanosecond tick at which the window starts
+     * @param heldIDs the identifiers of the Contacts that are down now
+     * @param heldXs the x values of the Contacts that are down now
+     * @param heldYs the y values of the Contacts that are down now
+     * @param heldCount the number of Contacts that are down now
+     * @return the events with identifiers stored as in a recording
+     */
+    synchronized EventStore capture(long from, int[] heldIDs, float[] heldXs, float[] heldYs, int heldCount) {
+        // Find the oldest event in the window
+        long oldest = Math.max(count - capacity(), 0);
+        long start = count;
+        
+        while (start > oldest && ticks[(int)(start - 1) & mask] >= from) {
+            start--;
+        }
+        
+        EventStore events = new EventStore();
+        int[] started = new int[8];
+        int startedCount = 0;
+        
+        // Held Contacts that have no events in the window were down for all of it
+        for (int h = 0; h < heldCount; h++) {
+            boolean moved = false;
+            
+            for (long n = start; n < count && !moved; n++) {
+                moved = ids[(int)n & mask] == heldIDs[h];
+            }
+            
+            if (!moved) {
+                events.add(EventStore.ADD, (heldIDs[h]*(-1))-1, heldXs[h], heldYs[h], 0);
+            }
+        }
+        
+        for (long n = start; n < count; n++) {
+            int i = (int)n & mask;
+            int id = ids[i];
+            boolean seen = false;
+            
+            for (int s = 0; s < startedCount && !seen; s++) {
+                seen = started[s] == id;
+            }
+            
+            if (!seen) {
+                if (startedCount == started.length) {
+                    int[] grown = new int[startedCount*2];
+                    System.arraycopy(started, 0, grown, 0, startedCount);
+                    started = grown;
+                }
+                
+                started[startedCount++] = id;
+                
+                if (types[i] == EventStore.UPDATE) {
+                    events.add(EventStore.ADD, (id*(-1))-1, xs[i], ys[i], 0);
+                }
+                else if (types[i] == EventStore.REMOVE) {
+                    // Start from the last position before the window if the ring still has it
+                    int last = lastPosition(id, start, oldest);
+                    
+                    if (last < 0) {
+                        continue;
+                    }
+                    
+                    events.add(EventStore.ADD, (id*(-1))-1, xs[last], ys[last], 0);
+                }
+            }
+            
+            events.add(types[i], (id*(-1))-1, xs[i], ys[i], Math.max(ticks[i] - from, 0));
+        }
+        
+        return events;
+    }
+    
+    /**
+     * Returns the slot of the latest add or update of a Contact before the specified event.
+     * 
+     * @param id the Contact identifier
+     * @param before the number of the event to search back from
+     * @param oldest the number of the oldest event in the ring
+     * @return the slot or -1 if the ring holds no position for the Contact
+     */
+    private int lastPosition(int id, long before, long oldest) {
+        for (long n = before - 1; n >= oldest; n--) {
+            int i = (int)n & mask;
+            
+            if (ids[i] == id) {
+                return types[i] == EventStore.REMOVE ? -1 : i;
+            }
+        }
+        
+        return -1;
+    }
+}
@@ -56,6 +56,34 @@ public class Contact {
         return id;
     }
     
+    /**
+     * Sets the identifier and coordinates of this Contact so that it can be reused for a new touch.
+     * 
+     * @param id the identifier
+     * @param x the x coordinate
+     * @param y the y coordinate
+     */
+    void reset(int id, float x, float y) {
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        firstX = x;
+        firstY = y;
+    }
+    
+    /**
+     * Copies the identifier and all coordinates of the specified Contact into this Contact.
+     * 
+     * @param c the Contact to copy
+     */
+    void copy(Contact c) {
+        id = c.id;
+        x = c.x;
+        y = c.y;
+        firstX = c.firstX;
+        firstY = c.firstY;
+    }
+    
     /**
      * Sets the x coordinate.
      * 
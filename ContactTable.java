@@ -0,0 +1,333 @@
+package junctionbox;
+
+/**
+ * The ContactTable class holds the Contacts of a Junction keyed by their identifiers without boxing. Contacts are kept in dense
+ * slots in the order that they were added, so the first few Contacts can be read by position without allocating. A multitouch
+ * Junction rarely holds more than a handful of Contacts, so lookups scan the identifier slots directly and the table only grows
+ * when it is full.
+ * 
+ * <p>Removed Contacts are kept in a pool and reused by later touches, so a Junction stops allocating Contacts once it has seen
+ * its largest number of simultaneous touches. Pooled Contacts never leave the table: they are read and moved under its lock,
+ * and callers only get copies, so a Contact that is recycled for another touch cannot be changed through a stale handle.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class ContactTable {
+    /**
+     * The initial number of slots, which covers the usual number of fingers on one Junction.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+    
+    /**
+     * Returned by {@link #move(int, float, float)} when there is no Contact with the identifier. Both halves are a signalling
+     * NaN that coordinate arithmetic never produces.
+     */
+    static final long MISSING = 0x7FA000007FA00000L;
+    
+    /**
+     * The identifier in each slot.
+     */
+    private int[] ids = new int[INITIAL_CAPACITY];
+    
+    /**
+     * The Contact in each slot.
+     */
+    private Contact[] contacts = new Contact[INITIAL_CAPACITY];
+    
+    /**
+     * The number of slots in use.
+     */
+    private int size = 0;
+    
+    /**
+     * Contacts that have been removed and can be reused.
+     */
+    private Contact[] pool = new Contact[INITIAL_CAPACITY];
+    
+    /**
+     * The number of Contacts in the pool.
+     */
+    private int poolSize = 0;
+    
+    /**
+     * Returns a copy of the Contact with the specified identifier.
+     * 
+     * @param id the identifier
+     * @return a new Contact or null if there is no Contact with that identifier
+     */
+    synchronized Contact copy(int id) {
+        int i = indexOf(id);
+        
+        if (i < 0) {
+            return null;
+        }
+        
+        Contact c = new Contact(0, 0, 0);
+        c.copy(contacts[i]);
+        
+        return c;
+    }
+    
+    /**
+     * Moves the Contact with the specified identifier and returns where it was, so that reading the old coordinates and
+     * writing the new ones cannot be split by a removal that recycles the Contact. The old coordinates are packed into the
+     * result without allocating and read back with {@link #movedX(long)} and {@link #movedY(long)}.
+     * 
+     * @param id the identifier
+     * @param x the new x coordinate
+     * @param y the new y coordinate
+     * @return the packed old coordinates or {@link #MISSING} if there is no Contact with that identifier
+     */
+    synchronized long move(int id, float x, float y) {
+        int i = indexOf(id);
+        
+        if (i < 0) {
+            return MISSING;
+        }
+        
+        Contact c = contacts[i];
+        long old = ((long)Float.floatToRawIntBits(c.getX()) << 32) | (Float.floatToRawIntBits(c.getY()) & 0xFFFFFFFFL);
+        c.setX(x);
+        c.setY(y);
+        
+        return old;
+    }
+    
+    /**
+     * Returns the old x coordinate from the result of {@link #move(int, float, float)}.
+     * 
+     * @param moved the packed old coordinates
+     * @return the old x coordinate
+     */
+    static float movedX(long moved) {
+        return Float.intBitsToFloat((int)(moved >>> 32));
+    }
+    
+    /**
+     * Returns the old y coordinate from the result of {@link #move(int, float, float)}.
+     * 
+     * @param moved the packed old coordinates
+     * @return the old y coordinate
+     */
+    static float movedY(long moved) {
+        return Float.intBitsToFloat((int)moved);
+    }
+    
+    /**
+     * Returns true if there is a Contact with the specified identifier.
+     * 
+     * @param id the identifier
+     * @return true if the Contact is in this table
+     */
+    synchronized boolean contains(int id) {
+        return indexOf(id) >= 0;
+    }
+    
+    /**
+     * Adds a Contact with the specified identifier and coordinates, reusing a pooled Contact when one is available. A Contact
+     * with the same identifier is replaced in its existing slot.
+     * 
+     * @param id the identifier
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the added Contact
+     */
+    synchronized Contact add(int id, float x, float y) {
+        int i = indexOf(id);
+        
+        if (i < 0) {
+            if (size == ids.length) {
+                int[] grownIds = new int[size*2];
+                Contact[] grownContacts = new Contact[size*2];
+                System.arraycopy(ids, 0, grownIds, 0, size);
+                System.arraycopy(contacts, 0, grownContacts, 0, size);
+                ids = grownIds;
+                contacts = grownContacts;
+            }
+            
+            i = size++;
+            ids[i] = id;
+        }
+        else {
+            release(contacts[i]);
+        }
+        
+        Contact c;
+        
+        if (poolSize > 0) {
+            c = pool[--poolSize];
+            pool[poolSize] = null;
+            c.reset(id, x, y);
+        }
+        else {
+            c = new Contact(id, x, y);
+        }
+        
+        contacts[i] = c;
+        
+        return c;
+    }
+    
+    /**
+     * Removes the Contact with the specified identifier. Later Contacts move down one slot so that the order of addition is kept.
+     * 
+     * The removed Contact goes back to the pool.
+     * 
+     * @param id the identifier
+     * @return true if a Contact was removed
+     */
+    synchronized boolean remove(int id) {
+        int i = indexOf(id);
+        
+        if (i < 0) {
+            return false;
+        }
+        
+        Contact c = contacts[i];
+        int moved = size - i - 1;
+        System.arraycopy(ids, i+1, ids, i, moved);
+        System.arraycopy(contacts, i+1, contacts, i, moved);
+        size--;
+        contacts[size] = null;
+        release(c);
+        
+        return true;
+    }
+    
+    /**
+     * Removes all Contacts and returns them to the pool.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            release(contacts[i]);
+            contacts[i] = null;
+        }
+        
+        size = 0;
+    }
+    
+    /**
+     * Returns the number of Contacts.
+     * 
+     * @return the Contact count
+     */
+    synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Returns true if there are no Contacts.
+     * 
+     * @return true if this table is empty
+     */
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Returns the angle of the line from the second Contact to the first, in the order of addition.
+     * 
+     * @return the angle in radians or NaN if there are fewer than two Contacts
+     */
+    synchronized float firstTwoAngle() {
+        if (size < 2) {
+            return Float.NaN;
+        }
+        
+        Contact c0 = contacts[0];
+        Contact c1 = contacts[1];
+        
+        return (float)(Math.atan2((double)c0.getY()-c1.getY(), (double)c0.getX()-c1.getX()));
+    }
+    
+    /**
+     * Returns the distance between the first two Contacts in the order of addition.
+     * 
+     * @return the distance or NaN if there are fewer than two Contacts
+     */
+    synchronized float firstTwoDistance() {
+        if (size < 2) {
+            return Float.NaN;
+        }
+        
+        Contact c0 = contacts[0];
+        Contact c1 = contacts[1];
+        float dx = c0.getX() - c1.getX();
+        float dy = c0.getY() - c1.getY();
+        
+        return (float)Math.sqrt(dx*dx + dy*dy);
+    }
+    
+    /**
+     * Returns copies of the Contacts in the order of addition as a new array.
+     * 
+     * @return an array of copies of the current Contacts
+     */
+    synchronized Contact[] copies() {
+        Contact[] a = new Contact[size];
+        
+        for (int i = 0; i < size; i++) {
+            a[i] = new Contact(0, 0, 0);
+            a[i].copy(contacts[i]);
+        }
+        
+        return a;
+    }
+    
+    /**
+     * Copies the Contacts in the order of addition into the specified array, reusing the Contacts already in the array and
+     * only creating Contacts for empty elements.
+     * 
+     * @param into the array to fill
+     * @return the number of Contacts copied, which is at most the length of the array
+     */
+    synchronized int copyInto(Contact[] into) {
+        int n = Math.min(size, into.length);
+        
+        for (int i = 0; i < n; i++) {
+            if (into[i] == null) {
+                into[i] = new Contact(0, 0, 0);
+            }
+            
+            into[i].copy(contacts[i]);
+        }
+        
+        return n;
+    }
+    
+    /**
+     * Returns a Contact to the pool, which is kept no larger than the number of slots.
+     * 
+     * @param c the Contact that is no longer in use
+     */
+    private void release(Contact c) {
+        if (poolSize == pool.length) {
+            if (pool.length >= ids.length) {
+                return;
+            }
+            
+            Contact[] grown = new Contact[ids.length];
+            System.arraycopy(pool, 0, grown, 0, poolSize);
+            pool = grown;
+        }
+        
+        pool[poolSize++] = c;
+    }
+    
+    /**
+     * Returns the slot that holds the specified identifier.
+     * 
+     * @param id the identifier
+     * @return the slot or -1 if the identifier is not in this table
+     */
+    private int indexOf(int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+}
@@ -1,38 +1,32 @@
 package junctionbox;
 
 import android.view.MotionEvent;
+import com.illposed.osc.OSCListener;
+import com.illposed.osc.OSCMessage;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.InterruptedException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.TimeUnit;
-import javax.xml.parsers.DocumentBuilder; 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource; 
-import javax.xml.transform.stream.StreamResult;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.xml.parsers.SAXParserFactory;
 import TUIO.TuioBlob;
 import TUIO.TuioClient;
 import TUIO.TuioCursor;
 import TUIO.TuioListener;
 import TUIO.TuioObject;
 import TUIO.TuioTime;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * The Dispatcher takes touch input and dispatches the basic touch data to Junctions to enables interactions. The Dispatcher
@@ -50,6 +44,16 @@ public class Dispatcher implements TuioListener {
      */
     private CopyOnWriteArrayList<Junction> junctionList;
     
+    /**
+     * The spatial index used to find the Junction under a new Contact.
+     */
+    private SpatialIndex junctionIndex;
+    
+    /**
+     * The Junction or subjunction that owns each current Contact, keyed by Contact identifier.
+     */
+    private OwnerTable ownerTable;
+    
     /**
      * The width of the designated touch area.
      */
@@ -75,6 +79,11 @@ public class Dispatcher implements TuioListener {
      */
     private boolean useTarget = false;
     
+    /**
+     * The Relay shared by all Junctions that use the target of this Dispatcher.
+     */
+    private Relay targetRelay;
+    
     /**
      * The client for receiving TUIO messages.
      */
@@ -91,12 +100,52 @@ public class Dispatcher implements TuioListener {
     private boolean mouseActive = false;
     
     /**
-     * The queue for recorded events.
+     * Determines whether the messages produced by each Contact event are sent as a single OSC bundle.
+     */
+    private volatile boolean bundling = false;
+    
+    /**
+     * Determines whether messages are held until the end of each TUIO frame.
+     */
+    private volatile boolean frameSync = false;
+    
+    /**
+     * The recorded Takes in the order that they were made.
+     */
+    private CopyOnWriteArrayList<Take> takeList;
+    
+    /**
+     * The recorded Takes by identifier.
+     */
+    private ConcurrentHashMap<Integer,Take> takeMap;
+    
+    /**
+     * The Take that is being recorded.
+     */
+    private volatile Take recordTake;
+    
+    /**
+     * Where recorded events go, or null if not recording.
+     */
+    private volatile Recorder recorder;
+    
+    /**
+     * Why the last recording to a file failed, or null if it did not fail.
+     */
+    private volatile IOException recordingFailure;
+    
+    /**
+     * The number of events dropped from the last recording to a file that has stopped.
+     */
+    private volatile int droppedEvents = 0;
+    
+    /**
+     * The ring of recent events for captureLast(), or null if capturing is off.
      */
-    private PriorityQueue<Event> eventQueue;
+    private volatile CaptureRing captureRing;
     
     /**
-     * The number of recording made for a single event queue.
+     * The identifier of the most recent Take.
      */
     private int recordingCounter = -1;
     
@@ -108,32 +157,33 @@ public class Dispatcher implements TuioListener {
     /**
      * The first nanosecond tick for event playback.
      */
-    protected long firstPlayTick = 0;
+    protected volatile long firstPlayTick = 0;
     
     /**
-     * The current event state: stopped, recording, or playing.
+     * Determines whether events are being recorded.
      */
-    private volatile int state;
+    private volatile boolean recording = false;
     
     /**
-     * The default state.
+     * Determines whether the event playback thread is active.
      */
-    private final int STOPPED = 0;
+    private volatile boolean playing = false;
     
     /**
-     * Event recording is active.
+     * The last identifier given to a Contact during playback. Playback identifiers count down from -1 so that Contacts from
+     * different Takes never share an identifier.
      */
-    private final int RECORDING = 1;
+    private int playbackID = 0;
     
     /**
-     * The event playback thread is active.
+     * The event playback thread.
      */
-    private final int PLAYING = 2;
+    private volatile Player playThread;
     
     /**
-     * The event playback thread.
+     * The time to move playback to, or -1 if there is no seek waiting.
      */
-    private Player playThread;
+    private final AtomicLong seekRequest = new AtomicLong(-1);
     
     /**
      * Determines whether to loop playback.
@@ -141,252 +191,412 @@ public class Dispatcher implements TuioListener {
     private volatile boolean looping = false;
     
     /**
-     * Determines whether an event is the first to be recorded.
-     */
-    private boolean firstEvent = true;
-    
-    /**
-     * The event recording time in nanoseconds.
+     * The playback rate applied to every Take, where 1 is the recorded speed.
      */
-    private long recordTime = 0;
+    private volatile double playbackRate = 1.0;
     
     /**
-     * The event playback time in nanoseconds.
+     * Determines whether an event is the first to be recorded.
      */
-    private long playbackTime = 0;
+    private boolean firstEvent = true;
     
     /**
-     * Builder for XML documents.
+     * The event recording time in nanoseconds.
      */
-    private DocumentBuilder builder;
+    private volatile long recordTime = 0;
     
     /**
-     * The XML document to write.
+     * The number of events in all Takes except the Take being recorded.
      */
-    private Document writeDoc;
+    private volatile int eventCount = 0;
     
     /**
-     * The root of the XML document to write.
+     * The number of Takes that are soloed.
      */
-    private Element writeRoot;
+    private volatile int soloCount = 0;
     
     /**
-     * The XML document to read.
+     * The event playback time in nanoseconds.
      */
-    private Document readDoc;
+    private long playbackTime = 0;
     
     /**
-     * The root of the XML document to read.
+     * The time before each event deadline that playback stops parking and spins instead, which avoids oversleeping.
      */
-    private Element readRoot;
+    private static final long SPIN_NANOS = 200000L;
     
     /**
-     * An initial memory allocation to avoid further allocations for multiplications in scaleDelayTimes().
+     * How late each played event was dispatched.
      */
-    private BigDecimal scaledDelay;
+    private final LatencyHistogram playbackJitter = new LatencyHistogram();
     
     /**
-     * An initial memory allocation to avoid further allocations for rounding in scaleDelayTimes().
+     * The periodic save or null if autosaving is off.
      */
-    private BigDecimal roundedDelay;
+    private volatile Autosave autosave;
     
     /**
-     * Event is an inner class associated with the Timetable class.
+     * Where the events of the Take being recorded go: into the Take itself, or into a log file. Events are only added until the
+     * recorder is closed, so an event that arrives while recording stops never reaches a Take that has been finished.
      */
-    private class Event implements Delayed {
-        private int recordingID;
-        public static final int ADD = 0;
-        public static final int UPDATE = 1;
-        public static final int REMOVE = 2;
-        private int type;
-        private int id;
-        private float x = 0;
-        private float y = 0;
-        long delay;
+    private static final class Recorder {
+        /**
+         * The Take being recorded.
+         */
+        final Take take;
         
         /**
-         * Constructs a new Event.
-         * 
-         * @param t the event type
-         * @param id the event identifier
-         * @param x the x value of the event
-         * @param y the y value of the event
-         * @param d the delay value for the event
+         * The log that the events are written to, or null if they are held by the Take.
          */
-        public Event(int r, int t, int id, float x, float y, long d) {
-            recordingID = r;
-            this.id = id;
-            this.x = x;
-            this.y = y;
-            type = t;
-            delay = d;
-        }
+        final SpillLog log;
+        
+        /**
+         * The file of the log, or null if the events are held by the Take.
+         */
+        final File file;
+        
+        /**
+         * Determines whether events are no longer added.
+         */
+        private boolean closed = false;
         
         /**
-         * Constructs a new Event.
+         * Constructs a new Recorder.
          * 
-         * @param t the event type
-         * @param id the event identifier
-         * @param d the delay value for the event
+         * @param take the Take being recorded
+         * @param log the log to write to or null to hold the events in the Take
+         * @param file the file of the log or null
          */
-        public Event(int r, int t, int id, long d) {
-            recordingID = r;
-            this.id = id;
-            type = t;
-            delay = d;
+        Recorder(Take take, SpillLog log, File file) {
+            this.take = take;
+            this.log = log;
+            this.file = file;
         }
         
         /**
-         * Compares delay values for Events.
+         * Adds an event unless the recorder has been closed.
          * 
-         * @param d a Delayed object
+         * @param type the event type
+         * @param id the recorded identifier
+         * @param x the x value
+         * @param y the y value
+         * @param delay the delay in nanoseconds
          */
-        public int compareTo(Delayed d) {
-            // Comparison must be between actual delay values not result of getDelay() call
-            Event e = (Event)d;
-            if (this.delay < e.getDelayValue()) {
-                return -1;
+        synchronized void add(int type, int id, float x, float y, long delay) {
+            if (closed) {
+                return;
             }
-            else if (this.delay > e.getDelayValue()) {
-                return 1;
+            
+            if (log != null) {
+                log.add(type, id, x, y, delay);
             }
             else {
-                // Delay values are equal
-                return 0;
+                take.events.add(type, id, x, y, delay);
             }
         }
         
         /**
-         * Gets the delay value for this Event. Note that his is used by the Timetable to determine whether this Event should be
-         * removed from the queue. It does not return the absolute delay value.
+         * Returns the number of events recorded.
          * 
-         * @param unit TimeUnit for the delay
+         * @return the event count
          */
-        public long getDelay(TimeUnit unit) {
-            // Subtract delay value from current timer value to get expiration
-            return unit.convert(delay - (System.nanoTime() - firstPlayTick), TimeUnit.NANOSECONDS);
+        int size() {
+            return log != null ? log.size() : take.getEventCount();
         }
         
         /**
-         * Gets the absolute delay value.
-         * 
-         * @return the absolute delay
+         * Stops adding events. An event that is being added when this is called is added first.
+         */
+        synchronized void close() {
+            closed = true;
+        }
+    }
+    
+    /**
+     * Creates a Thread to run playback of recorded Takes. All Takes are played by this one Thread, which always dispatches the
+     * event that is due first across all Takes.
+     */
+    private class Player extends Thread {
+        private long startTimeTick = 0;
+        
+        /**
+         * The playback rate that the Takes are currently timed with.
          */
-        public long getDelayValue() {
-            return this.delay;
+        private double appliedRate = 1.0;
+        
+        public void run() {
+            startTimeTick = System.nanoTime();
+            Take[] takes = getPlayableTakes();
+            
+            if (takes.length > 0) {
+                firstPlayTick = System.nanoTime();
+                appliedRate = playbackRate;
+                
+                for (Take t : takes) {
+                    t.player = this;
+                    t.startPass(firstPlayTick, appliedRate);
+                }
+                
+                while (true) {
+                    if (rateChanged(takes)) {
+                        retime(takes);
+                    }
+                    
+                    long position = seekRequest.getAndSet(-1);
+                    
+                    if (position >= 0) {
+                        seekTakes(takes, position);
+                    }
+                    
+                    // Pick the Take with the earliest deadline
+                    Take next = null;
+                    long deadline = 0;
+                    
+                    for (Take t : takes) {
+                        if (t.done) {
+                            continue;
+                        }
+                        else if (!t.hasNext() && !looping) {
+                            // Without looping a Take ends at its last event
+                            releaseTake(t);
+                            t.done = true;
+                        }
+                        else {
+                            long d = t.nextDeadline();
+                            
+                            if (next == null || d < deadline) {
+                                next = t;
+                                deadline = d;
+                            }
+                        }
+                    }
+                    
+                    if (next == null || isInterrupted()) {
+                        break;
+                    }
+                    
+                    // With frame sync, the events due so far make up a frame, since no TUIO frame may come to flush them
+                    if (frameSync && deadline > System.nanoTime()) {
+                        flushFrame();
+                    }
+                    
+                    if (!waitUntil(deadline, takes)) {
+                        // Stopped, or woken up to seek or change rate
+                        continue;
+                    }
+                    
+                    if (next.hasNext()) {
+                        playEvent(next, next.cursor++);
+                    }
+                    else {
+                        // The end of a pass through the Take
+                        releaseTake(next);
+                        
+                        if (looping && next.passLength > 0) {
+                            next.startPass(deadline, appliedRate);
+                        }
+                        else {
+                            next.done = true;
+                        }
+                    }
+                }
+                
+                clearContacts();
+                
+                if (frameSync) {
+                    flushFrame();
+                }
+                
+                for (Take t : takes) {
+                    t.unbindAll();
+                    t.player = null;
+                }
+                
+                looping = false;
+            }
+            
+            playing = false;
+            playbackTime = System.nanoTime() - startTimeTick;
         }
         
         /**
-         * Sets the delay value.
+         * Dispatches an event from a Take under a playback identifier.
          * 
-         * @param d the delay
+         * @param t the Take
+         * @param i the index of the event
          */
-        public void setDelayValue(long d) {
-            delay = d;
+        private void playEvent(Take t, int i) {
+            EventStore events = t.events;
+            int recorded = events.getID(i);
+            
+            if (!isAudible(t)) {
+                releaseTake(t);
+                return;
+            }
+            
+            switch (events.getType(i)) {
+                case EventStore.ADD:
+                    int id = nextPlaybackID();
+                    t.bind(recorded, id);
+                    addContact(id, events.getX(i), events.getY(i), false);
+                    break;
+                case EventStore.UPDATE:
+                    int updated = t.lookup(recorded);
+                    
+                    if (updated != 0) {
+                        updateContact(updated, events.getX(i), events.getY(i), false);
+                    }
+                    break;
+                case EventStore.REMOVE:
+                    int removed = t.unbind(recorded);
+                    
+                    if (removed != 0) {
+                        removeContact(removed, false);
+                    }
+                    break;
+                default:
+                    break;
+            }
         }
         
         /**
-         * Gets the recording ID for this Event.
+         * Moves every Take to the specified time since the start of playback. The Contacts that are down at that time are added
+         * at their positions, so playback carries on as if it had played up to that time.
          * 
-         * @return the recording ID
+         * @param takes the Takes being played
+         * @param position the time since the start of playback in nanoseconds at a playback rate of 1
          */
-        public int getRecordingID() {
-            return recordingID;
+        private void seekTakes(Take[] takes, long position) {
+            long now = System.nanoTime();
+            firstPlayTick = now - (long)(position/appliedRate);
+            
+            for (Take t : takes) {
+                releaseTake(t);
+                t.seek(now, position, looping, appliedRate);
+                
+                if (!t.done && isAudible(t)) {
+                    TimeIndex.State down = t.getDownAtCursor();
+                    
+                    for (int i = 0; i < down.count; i++) {
+                        int id = nextPlaybackID();
+                        t.bind(down.ids[i], id);
+                        addContact(id, down.xs[i], down.ys[i], false);
+                    }
+                }
+            }
         }
         
         /**
-         * Gets the type for this Event.
+         * Returns true if the playback rate or the rate of any Take has changed since the Takes were last timed.
          * 
-         * @return the event type
+         * @param takes the Takes being played
+         * @return true if the Takes need to be timed again
          */
-        public int getType() {
-            return type;
+        private boolean rateChanged(Take[] takes) {
+            double r = playbackRate;
+            
+            if (r != appliedRate) {
+                return true;
+            }
+            
+            for (Take t : takes) {
+                if (t.getRate()*r != t.loopRate) {
+                    return true;
+                }
+            }
+            
+            return false;
         }
         
         /**
-         * Gets the ID associated with this Event.
+         * Times the Takes with the current rates. Each Take carries on from the place it has reached, so a rate change never
+         * jumps or replays events, and the start of playback moves so that the playback position carries on too.
          * 
-         * @return the Event ID
+         * @param takes the Takes being played
          */
-        public int getID() {
-            return id;
+        private void retime(Take[] takes) {
+            long now = System.nanoTime();
+            double r = playbackRate;
+            
+            firstPlayTick = now - (long)((now - firstPlayTick)*appliedRate/r);
+            appliedRate = r;
+            
+            for (Take t : takes) {
+                double takeRate = t.getRate()*r;
+                
+                if (takeRate != t.loopRate) {
+                    t.setPassRate(now, takeRate);
+                }
+            }
         }
         
         /**
-         * Gets the X value associated with this Event.
+         * Returns true if a Take is heard, which it is unless it is muted or other Takes are soloed.
          * 
-         * @return the x value
+         * @param t the Take
+         * @return true if the events of the Take are dispatched
          */
-        public float getX() {
-            return x;
+        private boolean isAudible(Take t) {
+            return !t.isMuted() && (soloCount == 0 || t.soloed);
         }
         
         /**
-         * Gets the Y value associated with this Event.
+         * Removes the Contacts from a Take that are down.
          * 
-         * @return the y value
+         * @param t the Take
          */
-        public float getY() {
-            return y;
+        private void releaseTake(Take t) {
+            for (int i = 0; i < t.getDownCount(); i++) {
+                removeContact(t.getDownID(i), false);
+            }
+            
+            t.unbindAll();
         }
-    }
-    
-    /**
-     * Creates a Thread to run playback of recorded Events.
-     */
-    private class Player extends Thread {
-        private long startTimeTick = 0;
         
-        public void run() {
-            startTimeTick = System.nanoTime();
+        /**
+         * Returns the next identifier for a Contact during playback.
+         * 
+         * @return a negative identifier
+         */
+        private int nextPlaybackID() {
+            playbackID = playbackID == Integer.MIN_VALUE ? -1 : playbackID - 1;
             
-            int c = eventQueue.size();
+            return playbackID;
+        }
+        
+        /**
+         * Waits until the specified tick.
+         * 
+         * @param deadline the nanosecond tick
+         * @param takes the Takes being played
+         * @return true if the deadline has passed, false if playback was stopped, a seek is waiting or a rate has changed
+         */
+        private boolean waitUntil(long deadline, Take[] takes) {
+            long wait = deadline - System.nanoTime();
             
-            if (c > 0) {
-                state = PLAYING;
+            // Park until just before the deadline since parking can wake up late
+            while (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
                 
-                playing: // The label helps for breaking both inner and outer loops
-                    do {
-                        DelayQueue<Event> playQueue = new DelayQueue<Event>(eventQueue);
-                        firstPlayTick = System.nanoTime();
-                        
-                        for (int i = 0; i < c; i++) {
-                            Event e;
-                            try {
-                                // This should be waiting based on the delay
-                                e = playQueue.take();
-                                
-                                if (e != null) {
-                                    switch (e.getType()) {
-                                        case Event.ADD:
-                                            addContact(e.getID(), e.getX(), e.getY());
-                                            break;
-                                        case Event.UPDATE:
-                                            updateContact(e.getID(), e.getX(), e.getY());
-                                            break;
-                                        case Event.REMOVE:
-                                            removeContact(e.getID());
-                                            break;
-                                        default:
-                                            break;
-                                    }
-                                }
-                            }
-                            catch (InterruptedException ie) {
-                                clearContacts();
-                                break playing;
-                            }
-                        }
-                        
-                        clearContacts();
-                    }
-                    while (looping);
+                if (isInterrupted() || seekRequest.get() >= 0 || rateChanged(takes)) {
+                    return false;
+                }
                 
-                looping = false;
-                state = STOPPED;
+                wait = deadline - System.nanoTime();
             }
             
-            playbackTime = System.nanoTime() - startTimeTick;
+            // Spin for the rest
+            while (wait > 0) {
+                if (isInterrupted() || seekRequest.get() >= 0 || rateChanged(takes)) {
+                    return false;
+                }
+                
+                wait = deadline - System.nanoTime();
+            }
+            
+            playbackJitter.record(0 - wait);
+            
+            return !isInterrupted();
         }
     }
     
@@ -397,10 +607,10 @@ public class Dispatcher implements TuioListener {
      * @param h the box height
      */
     public Dispatcher(float w, float h) {
-        initialize();
-        
         boxWidth = w;
         boxHeight = h;
+        
+        initialize();
     }
     
     /**
@@ -412,43 +622,33 @@ public class Dispatcher implements TuioListener {
      * @param port the port number of the target
      */
     public Dispatcher(float w, float h, String address, int port) {
-        initialize();
-        
         boxWidth = w;
         boxHeight = h;
         
+        initialize();
+        
         targetAddress = address;
         targetPort = port;
+        targetRelay = new Relay(address, port);
         useTarget = true;
     }
     
     /**
-     * Initialize the list for Junctions, the TUIO client, the Event queue, and the XML document builder.
+     * Initialize the list for Junctions, the spatial index, the Contact owners, and the list of Takes.
      */
     private void initialize() {
         junctionList = new CopyOnWriteArrayList<Junction>();
+        junctionIndex = new SpatialIndex(junctionList, boxWidth, boxHeight);
+        ownerTable = new OwnerTable();
         
-        // Event queue for this Timetable
-        eventQueue = new PriorityQueue<Event>();
-        
-        // Default state
-        state = STOPPED;
-        
-        // Set up XML input/output
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            builder = factory.newDocumentBuilder();
-            writeDoc = builder.newDocument();
-            writeRoot = writeDoc.createElement("junctionbox");
-            writeDoc.appendChild(writeRoot);
-        }
-        catch (ParserConfigurationException e) {
-            // Do nothing
-        }
+        // Takes for recordings
+        takeList = new CopyOnWriteArrayList<Take>();
+        takeMap = new ConcurrentHashMap<Integer,Take>();
     }
     
     /**
-     * Sets the IP address and port of the target to the specified values.
+     * Sets the IP address and port of the target to the specified values. Junctions that already use the target keep the same
+     * Relay, which is moved to the new address and port.
      * 
      * @param address the IP address
      * @param port the port number
@@ -456,10 +656,23 @@ public class Dispatcher implements TuioListener {
     public void setTarget(String address, int port) {
         targetAddress = address;
         targetPort = port;
+        
+        // Reuse the Relay so that its socket and sender thread are not left open
+        if (targetRelay == null) {
+            targetRelay = new Relay(address, port);
+        }
+        else {
+            targetRelay.setSocket(address, port);
+        }
+        
         useTarget = true;
         
         for (Junction j : junctionList) {
-            j.setTarget(address, port);
+            j.setTarget(targetRelay);
+            
+            if (frameSync) {
+                j.setCoalescing(true);
+            }
         }
     }
     
@@ -485,7 +698,7 @@ public class Dispatcher implements TuioListener {
      * Creates a new Junction with the specified parameters. In order to receive Contacts, a Junctions must either be created by or added to
      * this Dispatcher. Junctions can be added with the {@link #addJunction(Junction)} method. When a Junction is created with this method,
      * it inherits the target IP address and port from this Dispatcher. This is convenient for situations where there is only one target that
-     * all Junctions can use without having to set individual targets for each Junction. The target IP address and port and still be set
+     * all Junctions can use without having to set individual targets for each Junction. Junctions created this way share a single Relay. The target IP address and port and still be set
      * individually for Junctions when {@link #addJunction(Junction)} is used.
      * 
      * @param x the x coordinate of the center point
@@ -500,10 +713,15 @@ public class Dispatcher implements TuioListener {
         
         // One set target for Junctions if a target has been set for this Dispatcher
         if (useTarget) {
-            j.setTarget(targetAddress, targetPort);
+            j.setTarget(targetRelay);
+        }
+        
+        if (frameSync) {
+            j.setCoalescing(true);
         }
         
         junctionList.add(j);
+        junctionIndex.invalidate();
         
         return j;
     }
@@ -517,7 +735,12 @@ public class Dispatcher implements TuioListener {
     public void addJunction(Junction j) {
         // Only allow a junction to be added once
         if (!junctionList.contains(j)) {
+            if (frameSync) {
+                j.setCoalescing(true);
+            }
+            
             junctionList.add(j);
+            junctionIndex.invalidate();
         }
     }
     
@@ -530,6 +753,10 @@ public class Dispatcher implements TuioListener {
         // This removes the first occurrence of this object but there should only be one...
         if (junctionList.contains(j)) {
             junctionList.remove(j);
+            junctionIndex.invalidate();
+            
+            // Forget the Contacts held by the removed Junction and its subjunctions
+            ownerTable.removeRoot(j);
         }
     }
     
@@ -547,6 +774,7 @@ public class Dispatcher implements TuioListener {
                 junctionList.remove(j);
                 // This automatically shifts other elements in the list
                 junctionList.add(o, j);
+                junctionIndex.invalidate();
             }
         }
     }
@@ -565,6 +793,63 @@ public class Dispatcher implements TuioListener {
      */
     public void clearJunctions() {
         junctionList.clear();
+        junctionIndex.invalidate();
+        ownerTable.clear();
+    }
+    
+    /**
+     * Determines whether the messages produced by each Contact event are sent as OSC bundles. When bundling is on, all of the
+     * messages that one call to {@link #addContact(int, float, float)}, {@link #updateContact(int, float, float)} or
+     * {@link #removeContact(int)} causes a Junction to send are delivered to each target as a single packet.
+     * 
+     * @param b true to bundle messages, false to send each message separately
+     */
+    public void setBundling(boolean b) {
+        bundling = b;
+    }
+    
+    /**
+     * Returns true if messages produced by each Contact event are sent as OSC bundles.
+     * 
+     * @return true if bundling, false otherwise
+     */
+    public boolean isBundling() {
+        return bundling;
+    }
+    
+    /**
+     * Determines whether messages are sent once per TUIO frame. When frame sync is on, Junctions hold the latest value of each
+     * message during a frame and every target receives a single bundle when the frame ends with {@link #refresh(TuioTime)}.
+     * Values that are superseded within a frame are never sent. Mouse and Android input do not produce TUIO frames, so when
+     * using them with frame sync, call {@link #flushFrame()} once per frame instead. Playback flushes by itself whenever it waits
+     * for the next recorded event. Turning frame sync off sends any held messages.
+     * 
+     * @param f true to send once per frame, false to send immediately
+     */
+    public void setFrameSync(boolean f) {
+        frameSync = f;
+        
+        for (Junction j : junctionList) {
+            j.setCoalescing(f);
+        }
+    }
+    
+    /**
+     * Returns true if messages are sent once per TUIO frame.
+     * 
+     * @return true if frame sync is on, false otherwise
+     */
+    public boolean isFrameSync() {
+        return frameSync;
+    }
+    
+    /**
+     * Sends the messages held by all Junctions since the last frame.
+     */
+    public void flushFrame() {
+        for (Junction j : junctionList) {
+            j.flushFrame();
+        }
     }
     
     /**
@@ -590,7 +875,7 @@ public class Dispatcher implements TuioListener {
     
     /**
      * Not currently implemented.
-     *
+     * 
      * @param tobj the TuioObject to add
      */
     public void addTuioObject(TuioObject tobj) {
@@ -599,7 +884,7 @@ public class Dispatcher implements TuioListener {
 
     /**
      * Not currently implemented.
-     *
+     * 
      * @param tobj the TuioObject to update
      */
     public void updateTuioObject(TuioObject tobj) {
@@ -608,7 +893,7 @@ public class Dispatcher implements TuioListener {
 
     /**
      * Not currently implemented.
-     *
+     * 
      * @param tobj the TuioObject to remove
      */
     public void removeTuioObject(TuioObject tobj) {
@@ -646,7 +931,7 @@ public class Dispatcher implements TuioListener {
      * Called when a new TuioCursor is added to the session. If the center point of the TuioCursor is contained within a Junction, then
      * a new Contact is created with data from the TuioCursor and passed to that Junction. The session identifier of the TuioCursor is
      * used in the corresponding Contact for ease of association.
-     *
+     * 
      * @param tcur the TuioCursor to add
      */
     public void addTuioCursor(TuioCursor tcur) {
@@ -657,7 +942,7 @@ public class Dispatcher implements TuioListener {
     /**
      * Called when an existing TuioCursor is updated. If the session identifier of the TuioCursor matches the identifier of a Contact in
      * a Junction, then that Contact is updated with new data from the TuioCursor.
-     *
+     * 
      * @param tcur the TuioCursor to update
      */
     public void updateTuioCursor(TuioCursor tcur) {
@@ -668,7 +953,7 @@ public class Dispatcher implements TuioListener {
     /**
      * Called when an existing TuioCursor is removed from the session. The Contact that corresponds to the TuioCursor that is removed will
      * itself be removed.
-     *
+     * 
      * @param tcur the TuioCursor to remove
      */
     public void removeTuioCursor(TuioCursor tcur) {
@@ -677,11 +962,13 @@ public class Dispatcher implements TuioListener {
     
     /**
      * Called to mark the end of a received TUIO message bundle.
-     *
+     * 
      * @param ftime the TuioTime for the current TUIO message bundle
      */
     public void refresh(TuioTime ftime) {
-        // Nothing here yet...
+        if (frameSync) {
+            flushFrame();
+        }
     }
     
     /**
@@ -783,52 +1070,102 @@ public class Dispatcher implements TuioListener {
      * @param y the y location of the Contact
      */
     public void addContact(int id, float x, float y) {
-        Junction[] junctionArray = junctionList.toArray(new Junction[0]);
-        
-        for (int i = junctionArray.length-1; i >= 0; i--) {
-            if (junctionArray[i].isLive()) {
-                if (junctionArray[i].inside(x, y)) {
-                    if (state == RECORDING && junctionArray[i].isRecordable()) {
-                        if (firstEvent) {
-                            firstRecordTick = System.nanoTime();
-                            queueAddEvent((id*(-1))-1, x, y, 0);
-                            firstEvent = false;
-                        }
-                        else {
-                            queueAddEvent((id*(-1))-1, x, y, System.nanoTime()-firstRecordTick);
-                        }
-                    }
-                    junctionArray[i].addContact(id, x, y);
-                    break;
-                }
-            }
-        }
+        addContact(id, x, y, true);
     }
     
     /**
-     * Updates a Contact associated with a Junction via this Dispatcher.
+     * Adds a Contact to this Dispatcher and records it if recording is active and the record flag is set.
      * 
      * @param id the identifier associated with the Contact
      * @param x the x location of the Contact
      * @param y the y location of the Contact
+     * @param record false to skip recording, such as for Contacts from playback
      */
-    public void updateContact(int id, float x, float y) {
-        Junction[] junctionArray = junctionList.toArray(new Junction[0]);
+    private void addContact(int id, float x, float y, boolean record) {
+        // Only the Junctions that share a grid cell with the Contact are tested
+        Junction j = junctionIndex.find(x, y);
         
-        for (int i = junctionArray.length-1; i >= 0; i--) {
-            if (junctionArray[i].containsContact(id)) {
-                if (state == RECORDING && junctionArray[i].isRecordable()) {
-                    if (firstEvent) {
-                        firstRecordTick = System.nanoTime();
-                        queueUpdateEvent((id*(-1))-1, x, y, 0);
-                        firstEvent = false;
-                    }
-                    else {
-                        queueUpdateEvent((id*(-1))-1, x, y, System.nanoTime()-firstRecordTick);
-                    }
+        if (j != null) {
+            if (record && j.isRecordable()) {
+                if (recording) {
+                    recordEvent(EventStore.ADD, id, x, y);
+                }
+                
+                CaptureRing ring = captureRing;
+                
+                if (ring != null) {
+                    ring.add(EventStore.ADD, id, x, y, System.nanoTime());
+                }
+            }
+            if (bundling) {
+                j.beginBundle();
+                try {
+                    j.addContact(id, x, y);
+                }
+                finally {
+                    j.flushBundle();
+                }
+            }
+            else {
+                j.addContact(id, x, y);
+            }
+            
+            Junction owner = j.getOwner(id);
+            
+            if (owner != null) {
+                ownerTable.put(id, owner);
+            }
+        }
+    }
+    
+    /**
+     * Updates a Contact associated with a Junction via this Dispatcher.
+     * 
+     * @param id the identifier associated with the Contact
+     * @param x the x location of the Contact
+     * @param y the y location of the Contact
+     */
+    public void updateContact(int id, float x, float y) {
+        updateContact(id, x, y, true);
+    }
+    
+    /**
+     * Updates a Contact via this Dispatcher and records it if recording is active and the record flag is set.
+     * 
+     * @param id the identifier associated with the Contact
+     * @param x the x location of the Contact
+     * @param y the y location of the Contact
+     * @param record false to skip recording, such as for Contacts from playback
+     */
+    private void updateContact(int id, float x, float y, boolean record) {
+        Junction owner = ownerTable.get(id);
+        
+        if (owner != null) {
+            Junction root = owner.getRoot();
+            
+            if (record && root.isRecordable()) {
+                if (recording) {
+                    recordEvent(EventStore.UPDATE, id, x, y);
                 }
-                junctionArray[i].updateContact(id, x, y);
-                break; // No need to check more junctions
+                
+                CaptureRing ring = captureRing;
+                
+                if (ring != null) {
+                    ring.add(EventStore.UPDATE, id, x, y, System.nanoTime());
+                }
+            }
+            // Updates that pass through a parent go straight to the subjunction that owns the Contact
+            if (bundling) {
+                root.beginBundle();
+                try {
+                    owner.updateContact(id, x, y);
+                }
+                finally {
+                    root.flushBundle();
+                }
+            }
+            else {
+                owner.updateContact(id, x, y);
             }
         }
     }
@@ -839,21 +1176,43 @@ public class Dispatcher implements TuioListener {
      * @param id the identifier associated with the Contact
      */
     public void removeContact(int id) {
-        Junction[] junctionArray = junctionList.toArray(new Junction[0]);
+        removeContact(id, true);
+    }
+    
+    /**
+     * Removes a Contact via this Dispatcher and records it if recording is active and the record flag is set.
+     * 
+     * @param id the identifier associated with the Contact
+     * @param record false to skip recording, such as for Contacts from playback
+     */
+    private void removeContact(int id, boolean record) {
+        Junction owner = ownerTable.remove(id);
         
-        for (int i = junctionArray.length-1; i >= 0; i--) {
-            if (junctionArray[i].containsContact(id)) {
-                if (state == RECORDING && junctionArray[i].isRecordable()) {
-                    if (firstEvent) {
-                        firstRecordTick = System.nanoTime();
-                        queueRemoveEvent((id*(-1))-1, 0);
-                        firstEvent = false;
-                    }
-                    else {
-                        queueRemoveEvent((id*(-1))-1, System.nanoTime()-firstRecordTick);
-                    }
+        if (owner != null) {
+            Junction root = owner.getRoot();
+            
+            if (record && root.isRecordable()) {
+                if (recording) {
+                    recordEvent(EventStore.REMOVE, id, 0, 0);
+                }
+                
+                CaptureRing ring = captureRing;
+                
+                if (ring != null) {
+                    ring.add(EventStore.REMOVE, id, 0, 0, System.nanoTime());
                 }
-                junctionArray[i].removeContact(id);
+            }
+            if (bundling) {
+                root.beginBundle();
+                try {
+                    root.removeContact(id);
+                }
+                finally {
+                    root.flushBundle();
+                }
+            }
+            else {
+                root.removeContact(id);
             }
         }
     }
@@ -867,30 +1226,162 @@ public class Dispatcher implements TuioListener {
         for (int i = junctionArray.length-1; i >= 0; i--) {
             junctionArray[i].clearContacts();
         }
+        
+        ownerTable.clear();
     }
     
     /**
-     * Starts recording events for selected Junctions.
+     * Starts recording events for selected Junctions into a new Take that is layered on top of the existing Takes. Recording can
+     * start during playback to overdub, in which case the new Take is timed from the start of playback so that it stays in step
+     * with the Takes that were playing. A Take recorded during playback is played from the next call to startPlaying().
      */
     public void startRecording() {
-        if (state == STOPPED) {
-            clearEvents(); // This is only here until there is code for layering and appending recordings
-            state = RECORDING;
+        if (!recording) {
+            beginTake(null, null);
+        }
+    }
+    
+    /**
+     * Starts recording events for selected Junctions into a new Take that is written to the specified file as it is recorded,
+     * which keeps memory use constant however long the recording runs. The file is in the binary recording format, and if
+     * recording is cut off by a crash the file can still be loaded with loadRecording(); events recorded within about a tenth of
+     * a second of the crash, or that a slow disk had not yet taken, are missing. Events are dropped rather than holding up input
+     * if the disk falls behind, and the number dropped is returned by {@link #getDroppedEventCount()}. When recording stops the
+     * Take plays straight from the file. Recording does not start if the file cannot be written, and if the
+     * file cannot be finished or read back when recording stops the file is kept; either way the reason is returned by
+     * {@link #getRecordingFailure()}.
+     * 
+     * @param file the file to record to, which is replaced
+     */
+    public void startRecording(File file) {
+        if (!recording) {
+            try {
+                beginTake(new SpillLog(file), file);
+            }
+            catch (IOException e) {
+                recordingFailure = e;
+            }
+        }
+    }
+    
+    /**
+     * Returns why the last recording to a file failed. A recording whose file could not be read back after recording stopped is
+     * not kept as a Take, but its file is left in place so that it can be loaded with loadRecording() later.
+     * 
+     * @return the failure or null if the last recording to a file did not fail
+     */
+    public IOException getRecordingFailure() {
+        return recordingFailure;
+    }
+    
+    /**
+     * Returns the number of events that were not written to the file of the current or last recording to a file because the
+     * disk fell behind.
+     * 
+     * @return the dropped event count
+     */
+    public int getDroppedEventCount() {
+        Recorder r = recorder;
+        
+        return r != null && r.log != null ? r.log.getDroppedCount() : droppedEvents;
+    }
+    
+    /**
+     * Creates the Take to record into and starts recording.
+     * 
+     * @param log the log to write the Take to or null to hold it in memory
+     * @param file the file of the log or null
+     */
+    private void beginTake(SpillLog log, File file) {
+        recordingCounter += 1;
+        Take t = new Take(recordingCounter);
+        
+        if (playing) {
+            firstRecordTick = firstPlayTick;
+            firstEvent = false;
+        }
+        else {
             firstEvent = true;
-            recordingCounter += 1;
         }
+        
+        recordTake = t;
+        recordingFailure = null;
+        droppedEvents = 0;
+        recorder = new Recorder(t, log, file);
+        takeList.add(t);
+        takeMap.put(t.getID(), t);
+        recording = true;
     }
     
     /**
      * Stops recording events.
      */
     public void stopRecording() {
-        state = STOPPED;
+        if (recording) {
+            recording = false;
+            
+            Recorder r = recorder;
+            recorder = null;
+            
+            // No event reaches the Take after this
+            r.close();
+            
+            if (r.log != null) {
+                finishSpill(r);
+            }
+            
+            // A Take without events is not kept
+            if (recordTake.getEventCount() == 0) {
+                removeTake(recordTake);
+            }
+            else {
+                addTotals(recordTake);
+            }
+        }
+    }
+    
+    /**
+     * Closes the log of a Take that was recorded to a file and replaces the Take with one that plays from the file. The file is
+     * read back even if the log could not be closed cleanly, since it is readable up to its last complete event.
+     * 
+     * @param r the recorder of the Take
+     */
+    private void finishSpill(Recorder r) {
+        Take spilled = r.take;
+        IOException failure = null;
+        
+        try {
+            r.log.close();
+        }
+        catch (IOException e) {
+            failure = e;
+        }
         
-        // Get the record time when stopping to make getting the record time more efficient
-        if (!eventQueue.isEmpty()) {
-            recordTime = Collections.max(eventQueue).getDelayValue();
+        try {
+            for (Take t : RecordingFile.read(r.file, spilled.getID())) {
+                t.loopLength = spilled.loopLength;
+                t.setRate(spilled.getRate());
+                t.setMuted(spilled.isMuted());
+                t.soloed = spilled.soloed;
+                
+                int index = takeList.indexOf(spilled);
+                
+                if (index >= 0) {
+                    takeList.set(index, t);
+                    takeMap.put(t.getID(), t);
+                }
+                
+                recordTake = t;
+            }
+        }
+        catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
         }
+        
+        recordingFailure = failure;
+        droppedEvents = r.log.getDroppedCount();
     }
     
     /**
@@ -899,16 +1390,170 @@ public class Dispatcher implements TuioListener {
      * @return true if recording, false otherwise
      */
     public boolean isRecording() {
-        if (state == RECORDING) {
-            return true;
+        return recording;
+    }
+    
+    /**
+     * Records an event into the current Take.
+     * 
+     * @param type the event type
+     * @param id the identifier associated with the Contact
+     * @param x the x location of the Contact
+     * @param y the y location of the Contact
+     */
+    private void recordEvent(int type, int id, float x, float y) {
+        Recorder r = recorder;
+        
+        if (r == null) {
+            return;
+        }
+        
+        long delay = 0;
+        
+        if (firstEvent) {
+            firstRecordTick = System.nanoTime();
+            firstEvent = false;
         }
         else {
-            return false;
+            delay = System.nanoTime() - firstRecordTick;
+        }
+        
+        r.add(type, (id*(-1))-1, x, y, delay);
+    }
+    
+    /**
+     * Keeps the most recent events on recordable Junctions in a fixed-size ring, whether or not recording is on, so that they can
+     * be kept afterwards with captureLast(). The ring is allocated once and adding an event to it never allocates. A capacity of
+     * 0, which is the default, turns capturing off.
+     * 
+     * @param events the number of events to keep, which is rounded up to a power of two
+     */
+    public void setCaptureCapacity(int events) {
+        captureRing = events > 0 ? new CaptureRing(events) : null;
+    }
+    
+    /**
+     * Returns the number of recent events kept for captureLast().
+     * 
+     * @return the capacity or 0 if capturing is off
+     */
+    public int getCaptureCapacity() {
+        CaptureRing ring = captureRing;
+        
+        return ring != null ? ring.capacity() : 0;
+    }
+    
+    /**
+     * Keeps the events of the last stretch of time as a new Take, as if it had been recorded. Contacts that were already down
+     * when the stretch started are added at its start. Events older than the capture capacity are not available.
+     * 
+     * @param nanos the length of time to keep in nanoseconds
+     * @return the new Take or null if capturing is off or there were no events
+     */
+    public Take captureLast(long nanos) {
+        CaptureRing ring = captureRing;
+        
+        if (ring == null) {
+            return null;
+        }
+        
+        long from = System.nanoTime() - nanos;
+        
+        // Contacts that are down now may have been still for the whole stretch
+        int[] ids = ownerTable.ids();
+        int[] heldIDs = new int[ids.length];
+        float[] heldXs = new float[heldIDs.length];
+        float[] heldYs = new float[heldIDs.length];
+        int heldCount = 0;
+        
+        for (int id : ids) {
+            Junction owner = ownerTable.get(id);
+            Contact c = owner != null ? owner.getContact(id) : null;
+            
+            if (c != null && owner.getRoot().isRecordable()) {
+                heldIDs[heldCount] = id;
+                heldXs[heldCount] = c.getX();
+                heldYs[heldCount] = c.getY();
+                heldCount++;
+            }
+        }
+        
+        EventStore events = ring.capture(from, heldIDs, heldXs, heldYs, heldCount);
+        
+        if (events.size() == 0) {
+            return null;
         }
+        
+        recordingCounter += 1;
+        Take t = new Take(recordingCounter, events);
+        addTake(t);
+        
+        return t;
+    }
+    
+    /**
+     * Adds a Take that holds all of its events on top of the existing Takes.
+     * 
+     * @param t the Take
+     */
+    private void addTake(Take t) {
+        takeList.add(t);
+        takeMap.put(t.getID(), t);
+        addTotals(t);
+    }
+    
+    /**
+     * Adds the events and duration of a Take to the totals when it stops changing.
+     * 
+     * @param t the Take
+     */
+    private synchronized void addTotals(Take t) {
+        eventCount += t.getEventCount();
+        recordTime = Math.max(recordTime, t.getDuration());
     }
     
     /**
-     * Returns the elapsed record time in nanoseconds.
+     * Removes a Take and takes its events and duration out of the totals. The Take being recorded is not in the totals.
+     * 
+     * @param t the Take
+     */
+    private synchronized void removeTake(Take t) {
+        if (takeMap.remove(t.getID()) == null) {
+            return;
+        }
+        
+        takeList.remove(t);
+        
+        if (t.soloed) {
+            t.soloed = false;
+            soloCount--;
+        }
+        
+        if (t != recordTake || !recording) {
+            eventCount -= t.getEventCount();
+            
+            // Only the longest Take sets the record time
+            if (t.getDuration() >= recordTime) {
+                updateRecordTime();
+            }
+        }
+    }
+    
+    /**
+     * Sets the record time to the duration of the longest Take.
+     */
+    private void updateRecordTime() {
+        long longest = 0;
+        
+        for (Take t : takeList) {
+            longest = Math.max(longest, t.getDuration());
+        }
+        
+        recordTime = longest;
+    }
+    
+    /**
+     * Returns the duration of the longest Take in nanoseconds.
      * 
      * @return nanoseconds of recorded time
      */
@@ -920,7 +1565,9 @@ public class Dispatcher implements TuioListener {
      * Starts the playback of events. Note that this occurs in a new Thread.
      */
     public void startPlaying() {
-        if (state == STOPPED) {
+        if (!playing) {
+            playing = true;
+            playbackJitter.reset();
             playThread = new Player();
             playThread.start();
         }
@@ -935,25 +1582,95 @@ public class Dispatcher implements TuioListener {
         }
     }
     
+    /**
+     * Moves playback to the specified time since the start of playback. Each Take is moved to its own position at that time,
+     * taking its rate and loop length into account, and the Contacts that are down at that time are added so that playback
+     * carries on from there. Seeking reads a sparse index over each Take rather than replaying its events, so scrubbing through a
+     * long Take stays quick. If playback is not running, the next call to startPlaying() starts from the specified time.
+     * 
+     * @param nanos the time since the start of playback in nanoseconds at a playback rate of 1
+     */
+    public void seek(long nanos) {
+        seekRequest.set(Math.max(nanos, 0));
+        
+        Player p = playThread;
+        
+        if (p != null) {
+            LockSupport.unpark(p);
+        }
+    }
+    
+    /**
+     * Returns the time since the start of playback at a playback rate of 1, which moves with seek().
+     * 
+     * @return nanoseconds of playback time or 0 if not playing
+     */
+    public long getPlayPosition() {
+        return playing ? (long)((System.nanoTime() - firstPlayTick)*playbackRate) : 0;
+    }
+    
+    /**
+     * Sets the playback rate of all Takes. A rate of 2 plays twice as fast as recorded and a rate of 0.5 plays at half speed,
+     * on top of the rate of each Take. The rate can be changed at any time, including during playback and looping, and takes
+     * effect immediately from the current place in each Take. The recorded events are never changed. Rates that are not
+     * positive are ignored.
+     * 
+     * @param r the rate
+     */
+    public void setPlaybackRate(double r) {
+        if (r > 0) {
+            playbackRate = r;
+            
+            Player p = playThread;
+            
+            if (p != null) {
+                LockSupport.unpark(p);
+            }
+        }
+    }
+    
+    /**
+     * Returns the playback rate of all Takes.
+     * 
+     * @return the rate
+     */
+    public double getPlaybackRate() {
+        return playbackRate;
+    }
+    
+    /**
+     * Returns an OSCListener that sets the playback rate from the first argument of each message, so that the rate can be
+     * automated by adding the listener to an OSCPortIn at any address. Messages without a number as the first argument are
+     * ignored.
+     * 
+     * @return the listener
+     */
+    public OSCListener getPlaybackRateListener() {
+        return new OSCListener() {
+            public void acceptMessage(Date time, OSCMessage message) {
+                Object[] args = message.getArguments();
+                
+                if (args != null && args.length > 0 && args[0] instanceof Number) {
+                    setPlaybackRate(((Number)args[0]).doubleValue());
+                }
+            }
+        };
+    }
+    
     /**
      * Returns true if this Dispatcher is currently playing.
      * 
      * @return true if playing, false otherwise
      */
     public boolean isPlaying() {
-        if (state == PLAYING) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return playing;
     }
     
     /**
      * Loops the playback of events. Looping can be stopped by calling stopPlayback().
      */
     public void loopPlaying() {
-        if (state == STOPPED) {
+        if (!playing) {
             looping = true;
             startPlaying();
         }
@@ -993,54 +1710,98 @@ public class Dispatcher implements TuioListener {
     }
     
     /**
-     * Queues an add Event.
+     * Returns how late events were dispatched during the current or most recent playback. For example, a percentile of 99 returns
+     * the lateness that 99 percent of events did not exceed. Values are accurate to within about six percent.
      * 
-     * @param id the Event identifier
-     * @param x the center x value
-     * @param y the center y value
-     * @param d the nanosecond delay value
+     * @param percentile the percentile from 0 to 100
+     * @return the lateness in nanoseconds or 0 if no events have been played
      */
-    private void queueAddEvent(int id, float x, float y, long d) {
-        eventQueue.add(new Event(recordingCounter, Event.ADD, id, x, y, d));
+    public long getPlaybackJitter(double percentile) {
+        return playbackJitter.getPercentile(percentile);
     }
     
     /**
-     * Queues an update Event.
+     * Returns the Takes that can be played, which are all Takes with events except for the Take being recorded.
      * 
-     * @param id the Event identifier
-     * @param x the center x value
-     * @param y the center y value
-     * @param d the nanosecond delay value
+     * @return an array of Takes in order of playback
      */
-    private void queueUpdateEvent(int id, float x, float y, long d) {
-        eventQueue.add(new Event(recordingCounter, Event.UPDATE, id, x, y, d));
+    private Take[] getPlayableTakes() {
+        ArrayList<Take> playable = new ArrayList<Take>();
+        Take active = recording ? recordTake : null;
+        
+        for (Take t : takeList) {
+            if (t != active && t.getEventCount() > 0) {
+                // Playback walks the events in order of delay
+                t.events.sort();
+                playable.add(t);
+            }
+        }
+        
+        return playable.toArray(new Take[0]);
     }
     
     /**
-     * Queues a remove Event.
+     * Returns the recorded Takes in the order that they were made.
      * 
-     * @param id the Event identifier
-     * @param d the nanosecond delay value
+     * @return an array of Takes
      */
-    private void queueRemoveEvent(int id, long d) {
-        eventQueue.add(new Event(recordingCounter, Event.REMOVE, id, d));
+    public Take[] getTakes() {
+        return takeList.toArray(new Take[0]);
     }
     
     /**
-     * Gets the total number of events in the event queue.
+     * Returns the Take with the specified identifier.
+     * 
+     * @param id the Take identifier
+     * @return the Take or null if there is no Take with that identifier
+     */
+    public Take getTake(int id) {
+        return takeMap.get(id);
+    }
+    
+    /**
+     * Solos or unsolos a Take. While any Take is soloed, only soloed Takes are heard and the others keep their place in time
+     * like muted Takes.
+     * 
+     * @param id the Take identifier
+     * @param solo true to solo, false to unsolo
+     */
+    public synchronized void setSolo(int id, boolean solo) {
+        Take t = takeMap.get(id);
+        
+        if (t != null && t.soloed != solo) {
+            t.soloed = solo;
+            soloCount += solo ? 1 : -1;
+        }
+    }
+    
+    /**
+     * Gets the total number of recorded events across all Takes.
      * 
      * @return the event count
      */
     public int getEventCount() {
-        return eventQueue.size();
+        int count = eventCount;
+        
+        // Events recorded to a file are not held by their Take until recording stops
+        Recorder r = recorder;
+        
+        if (r != null) {
+            count += r.size();
+        }
+        
+        return count;
     }
     
     /**
-     * Clears all events from the event queue.
+     * Clears all recorded Takes.
      */
     public void clearEvents() {
-        if (state == STOPPED) {
-            eventQueue.clear();
+        if (!recording && !playing) {
+            takeList.clear();
+            takeMap.clear();
+            eventCount = 0;
+            soloCount = 0;
             recordTime = 0;
             playbackTime = 0;
             recordingCounter = -1;
@@ -1048,176 +1809,348 @@ public class Dispatcher implements TuioListener {
     }
     
     /**
-     * Returns an array of Events from the event queue.
+     * Scale Event times by the specified factor during playback. This divides the playback rate by the factor, so a factor of
+     * 2 plays at half speed, and leaves the recorded events unchanged.
      * 
-     * @return an Event array
+     * @param s the scaling factor
      */
-    private Event[] getEvents() {
-        if (state == STOPPED) {
-            Event[] eventArray = new Event[eventQueue.size()];
-            eventQueue.toArray(eventArray);
-            Arrays.sort(eventArray);
-            
-            return eventArray;
-        }
-        else {
-            return null;
+    public void scaleEventTimes(double s) {
+        if (s > 0) {
+            setPlaybackRate(playbackRate/s);
         }
     }
     
     /**
-     * Scale Event times in the queue by the specified factor.
+     * Removes a recorded Take.
      * 
-     * @param s the scaling factor
+     * @param id the Take identifier
      */
-    public void scaleEventTimes(double s) {
-        BigDecimal scaler = new BigDecimal(s);
-        
-        if (state == STOPPED) {
-            Event[] events = new Event[eventQueue.size()];
-            eventQueue.toArray(events);
+    public void removeRecording(int id) {
+        if (!recording && !playing) {
+            Take t = takeMap.get(id);
             
-            for (int i = 0; i < events.length; i++) {
-                BigDecimal initialDelay = new BigDecimal(events[i].getDelayValue());
-                scaledDelay = initialDelay.multiply(scaler);
-                roundedDelay = scaledDelay.setScale(0, RoundingMode.HALF_UP);
-                events[i].setDelayValue(roundedDelay.longValue());
+            if (t != null) {
+                removeTake(t);
             }
-            
-            scaledDelay = null;
-            roundedDelay = null;
-            
-            // The total recorded time has now changed
-            recordTime = Collections.max(eventQueue).getDelayValue();
         }
     }
     
     /**
-     * Removes a set of recorded events based on the recording id.
-     * 
-     * @param id
+     * The saved values of a Junction.
      */
-    public void removeRecording(int id) {
-        if (state == STOPPED) {
-            for (Event e : eventQueue) {
-                if (e.getRecordingID() == id) {
-                    eventQueue.remove(e);
-                }
-            }
-        }
+    private static class SavedJunction {
+        String label = "";
+        int order = 0;
+        float centerX = 0;
+        float centerY = 0;
+        float width = 0;
+        float height = 0;
+        float angle = 0;
+        boolean toggle = false;
     }
     
     /**
-     * Saves Junction data to XML.
+     * Reads a junctionbox XML document as it is parsed. Junction values are kept as SavedJunctions and each event queue is read
+     * straight into a Take, so no document tree is built.
      */
-    private void saveJunctions() {
-        // Check for Junctions to save
-        if (junctionList.size() > 0) {
+    private static class XMLHandler extends DefaultHandler {
+        /**
+         * The Junctions read from the document.
+         */
+        final ArrayList<SavedJunction> junctions = new ArrayList<SavedJunction>();
+        
+        /**
+         * The Takes read from the document. Event queues without events are skipped.
+         */
+        final ArrayList<Take> takes = new ArrayList<Take>();
+        
+        /**
+         * The identifier for the first Take.
+         */
+        private final int firstID;
+        
+        /**
+         * The number of event queues read so far.
+         */
+        private int queueCount = 0;
+        
+        /**
+         * The text of the current element.
+         */
+        private final StringBuilder text = new StringBuilder();
+        
+        /**
+         * The depth of the current element, where the root is 1.
+         */
+        private int depth = 0;
+        
+        /**
+         * Whether the root node is <junctionbox>.
+         */
+        private boolean valid = false;
+        
+        /**
+         * The Junction being read or null.
+         */
+        private SavedJunction junction;
+        
+        /**
+         * The Take being read or null.
+         */
+        private Take take;
+        
+        /**
+         * Whether an event is being read.
+         */
+        private boolean inEvent = false;
+        
+        // The values of the event being read
+        private int type;
+        private int id;
+        private float x;
+        private float y;
+        private long delay;
+        
+        /**
+         * Constructs a new XMLHandler.
+         * 
+         * @param firstID the identifier for the first Take, with the rest numbered in order
+         */
+        XMLHandler(int firstID) {
+            this.firstID = firstID;
+        }
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth++;
+            text.setLength(0);
             
-            for (Junction j : junctionList) {
-                if (j.isSavable()) {
-                    Element junctionElement = writeDoc.createElement("junction");
-                    
-                    Element order = writeDoc.createElement("order");
-                    order.appendChild(writeDoc.createTextNode(Integer.toString(junctionList.indexOf(j))));
-                    junctionElement.appendChild(order);
-                    
-                    Element label = writeDoc.createElement("label");
-                    label.appendChild(writeDoc.createTextNode(j.getLabel()));
-                    junctionElement.appendChild(label);
-                    
-                    Element x = writeDoc.createElement("centerX");
-                    x.appendChild(writeDoc.createTextNode(Float.toString(j.getCenterX())));
-                    junctionElement.appendChild(x);
-                    
-                    Element y = writeDoc.createElement("centerY");
-                    y.appendChild(writeDoc.createTextNode(Float.toString(j.getCenterY())));
-                    junctionElement.appendChild(y);
-                    
-                    Element width = writeDoc.createElement("width");
-                    width.appendChild(writeDoc.createTextNode(Float.toString(j.getWidth())));
-                    junctionElement.appendChild(width);
-                    
-                    Element height = writeDoc.createElement("height");
-                    height.appendChild(writeDoc.createTextNode(Float.toString(j.getHeight())));
-                    junctionElement.appendChild(height);
-                    
-                    Element angle = writeDoc.createElement("angle");
-                    angle.appendChild(writeDoc.createTextNode(Float.toString(j.getAngle())));
-                    junctionElement.appendChild(angle);
-                    
-                    Element toggle = writeDoc.createElement("toggle");
-                    toggle.appendChild(writeDoc.createTextNode(Boolean.toString(j.getToggle())));
-                    junctionElement.appendChild(toggle);
+            if (depth == 1) {
+                // The root node must be <junctionbox>
+                valid = qName.equals("junctionbox");
+            }
+            else if (!valid) {
+                return;
+            }
+            else if (qName.equals("junction")) {
+                junction = new SavedJunction();
+            }
+            else if (qName.equals("eventQueue")) {
+                take = new Take(firstID + queueCount);
+                queueCount++;
+            }
+            else if (qName.equals("event") && take != null) {
+                inEvent = true;
+                type = 0;
+                id = 0;
+                x = 0;
+                y = 0;
+                delay = 0;
+            }
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            depth--;
+            
+            if (!valid) {
+                return;
+            }
+            
+            if (inEvent) {
+                if (qName.equals("type")) {
+                    type = Integer.valueOf(text.toString());
+                }
+                else if (qName.equals("id")) {
+                    id = Integer.valueOf(text.toString());
+                }
+                else if (qName.equals("x")) {
+                    x = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("y")) {
+                    y = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("delay")) {
+                    delay = Long.valueOf(text.toString());
+                }
+                else if (qName.equals("event")) {
+                    if (type == EventStore.ADD || type == EventStore.UPDATE) {
+                        take.events.add(type, id, x, y, delay);
+                    }
+                    else if (type == EventStore.REMOVE) {
+                        take.events.add(type, id, 0, 0, delay);
+                    }
                     
-                    writeRoot.appendChild(junctionElement);
+                    inEvent = false;
                 }
             }
+            else if (junction != null) {
+                if (qName.equals("order")) {
+                    junction.order = Integer.valueOf(text.toString());
+                }
+                else if (qName.equals("label")) {
+                    junction.label = text.toString();
+                }
+                else if (qName.equals("centerX")) {
+                    junction.centerX = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("centerY")) {
+                    junction.centerY = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("width")) {
+                    junction.width = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("height")) {
+                    junction.height = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("angle")) {
+                    junction.angle = Float.valueOf(text.toString());
+                }
+                else if (qName.equals("toggle")) {
+                    junction.toggle = Boolean.valueOf(text.toString());
+                }
+                else if (qName.equals("junction")) {
+                    junctions.add(junction);
+                    junction = null;
+                }
+            }
+            else if (qName.equals("eventQueue") && take != null) {
+                if (take.getEventCount() > 0) {
+                    takes.add(take);
+                }
+                
+                take = null;
+            }
         }
     }
     
     /**
-     * Saves Event data to XML.
+     * The state to save, copied at one moment so that it can be written while Junctions and Takes keep changing.
      */
-    private void saveEvents() {
-        // Use getEvents() since scrolling through the queue removes Events
-        Event[] events = getEvents();
+    private static class Snapshot {
+        /**
+         * The values of the savable Junctions.
+         */
+        final ArrayList<SavedJunction> junctions = new ArrayList<SavedJunction>();
         
-        // The event array could be null
-        if (events != null) {
-            int eventCount = events.length;
+        /**
+         * The events of each Take.
+         */
+        final ArrayList<EventStore> queues = new ArrayList<EventStore>();
+    }
+    
+    /**
+     * Copies the state to save. Copying the Junction values and the event chunk references is quick, so this can be called
+     * from any thread, and the Take being recorded is included up to its latest event.
+     * 
+     * @return the snapshot
+     */
+    private Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        int order = 0;
+        
+        for (Junction j : junctionList) {
+            if (j.isSavable()) {
+                SavedJunction saved = new SavedJunction();
+                saved.order = order;
+                saved.label = j.getLabel();
+                saved.centerX = j.getCenterX();
+                saved.centerY = j.getCenterY();
+                saved.width = j.getWidth();
+                saved.height = j.getHeight();
+                saved.angle = j.getAngle();
+                saved.toggle = j.getToggle();
+                snapshot.junctions.add(saved);
+            }
+            
+            order++;
+        }
+        
+        for (Take t : takeList) {
+            EventStore events = t.events.snapshot();
+            
+            if (events.size() > 0) {
+                snapshot.queues.add(events);
+            }
+        }
+        
+        return snapshot;
+    }
+    
+    /**
+     * Saves Junction data to XML.
+     * 
+     * @param xml the document to write to
+     * @param snapshot the state to save
+     * @throws SAXException if the document cannot be written
+     */
+    private static void saveJunctions(XMLOutput xml, Snapshot snapshot) throws SAXException {
+        for (SavedJunction saved : snapshot.junctions) {
+            xml.start("junction");
+            xml.element("order", Integer.toString(saved.order));
+            xml.element("label", saved.label);
+            xml.element("centerX", Float.toString(saved.centerX));
+            xml.element("centerY", Float.toString(saved.centerY));
+            xml.element("width", Float.toString(saved.width));
+            xml.element("height", Float.toString(saved.height));
+            xml.element("angle", Float.toString(saved.angle));
+            xml.element("toggle", Boolean.toString(saved.toggle));
+            xml.end("junction");
+        }
+    }
+    
+    /**
+     * Saves Event data to XML with one event queue for each Take.
+     * 
+     * @param xml the document to write to
+     * @param snapshot the state to save
+     * @throws SAXException if the document cannot be written
+     */
+    private static void saveEvents(XMLOutput xml, Snapshot snapshot) throws SAXException {
+        for (EventStore events : snapshot.queues) {
+            // Sorting a snapshot leaves the Take itself unchanged
+            events.sort();
+            int eventCount = events.size();
             
-            Element queueElement = writeDoc.createElement("eventQueue");
+            xml.start("eventQueue");
             
             for (int i = 0; i < eventCount; i++) {
-                Element event = writeDoc.createElement("event");
-                
-                Element type = writeDoc.createElement("type");
-                type.appendChild(writeDoc.createTextNode(Integer.toString(events[i].getType())));
-                event.appendChild(type);
-                
-                Element id = writeDoc.createElement("id");
-                id.appendChild(writeDoc.createTextNode(Integer.toString(events[i].getID())));
-                event.appendChild(id);
-                
-                Element x = writeDoc.createElement("x");
-                x.appendChild(writeDoc.createTextNode(Float.toString(events[i].getX())));
-                event.appendChild(x);
-                
-                Element y = writeDoc.createElement("y");
-                y.appendChild(writeDoc.createTextNode(Float.toString(events[i].getY())));
-                event.appendChild(y);
-                
-                Element delay = writeDoc.createElement("delay");
-                delay.appendChild(writeDoc.createTextNode(Long.toString(events[i].getDelayValue())));
-                event.appendChild(delay);
-                
-                queueElement.appendChild(event);
+                xml.start("event");
+                xml.element("type", Integer.toString(events.getType(i)));
+                xml.element("id", Integer.toString(events.getID(i)));
+                xml.element("x", Float.toString(events.getX(i)));
+                xml.element("y", Float.toString(events.getY(i)));
+                xml.element("delay", Long.toString(events.getDelay(i)));
+                xml.end("event");
             }
             
-            writeRoot.appendChild(queueElement);
+            xml.end("eventQueue");
         }
     }
     
     /**
-     * Saves Junction, Relay, and Event data to XML.
+     * Writes a snapshot to XML and closes the stream.
      * 
-     * @param output the file to save to
+     * @param snapshot the state to save
+     * @param output the stream to write to
+     * @return true if the whole document was written
      */
-    public void saveXML(OutputStream output) {
-        saveJunctions();
-        saveEvents();
+    private static boolean writeXML(Snapshot snapshot, OutputStream output) {
+        boolean written = false;
         
         try {
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Transformer transformer = factory.newTransformer();
-            
-            // Each tag on its own line
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            
-            DOMSource source = new DOMSource(writeDoc);
-            StreamResult result = new StreamResult(output);
-            transformer.transform(source, result);
+            XMLOutput xml = new XMLOutput(output);
+            xml.start("junctionbox");
+            saveJunctions(xml, snapshot);
+            saveEvents(xml, snapshot);
+            xml.end("junctionbox");
+            xml.finish();
+            written = true;
         }
         catch (Exception e) {
             // Do nothing
@@ -1229,136 +2162,114 @@ public class Dispatcher implements TuioListener {
                 }
             }
             catch (IOException io) {
-                // Do nothing
+                written = false;
             }
         }
+        
+        return written;
     }
     
     /**
-     * Loads Junction data from XML.
+     * Saves Junction, Relay, and Event data to XML. The state is copied when this method is called and only that copy is
+     * written, so saving the same state again writes the same document. The document is written as it is produced, so saving a
+     * long recording does not build the whole document in memory.
+     * 
+     * @param output the file to save to
      */
-    private void loadJunctions() {
-        if (readDoc != null) {
-            // The root node must be <junctionbox>
-            if (readRoot.getNodeName().equals("junctionbox")) {
-                NodeList junctionNodes = readDoc.getElementsByTagName("junction");
-                
-                for (int i = 0; i < junctionNodes.getLength(); i++) {
-                    NodeList valueNodes = junctionNodes.item(i).getChildNodes();
-                    
-                    String label = "";
-                    int order = 0;
-                    float centerX = 0;
-                    float centerY = 0;
-                    float width = 0;
-                    float height = 0;
-                    float angle = 0;
-                    boolean toggle = false;
-                    
-                    for (int j = 0; j < valueNodes.getLength(); j++) {
-                        Node value = valueNodes.item(j);
-                        
-                        if (value.getNodeName().equals("order")) {
-                            order = Integer.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("label")) {
-                            label = value.getTextContent();
-                        }
-                        else if (value.getNodeName().equals("centerX")) {
-                            centerX = Float.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("centerY")) {
-                            centerY = Float.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("width")) {
-                            width = Float.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("height")) {
-                            height = Float.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("angle")) {
-                            angle = Float.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("toggle")) {
-                            toggle = Boolean.valueOf(value.getTextContent());
-                        }
-                    }
-                    
-                    for (Junction junction : junctionList) {
-                        if (label.equals(junction.getLabel()) && junction.isSavable()) {
-                            junction.setCenter(centerX, centerY);
-                            junction.setWidth(width);
-                            junction.setHeight(height);
-                            junction.setAngle(angle);
-                            junction.setToggle(toggle);
-                            
-                            orderJunction(order, junction);
-                        }
-                    }
-                }
+    public void saveXML(OutputStream output) {
+        writeXML(takeSnapshot(), output);
+    }
+    
+    /**
+     * Starts saving to XML periodically on a background thread. Each save replaces the file with the state at the time of the
+     * save, and the Take being recorded is included so that a recording in progress is not lost. Any autosave that is already
+     * running is stopped first.
+     * 
+     * @param file the file to save to
+     * @param period the time between saves
+     * @param unit the unit of the time between saves
+     */
+    public synchronized void startAutosave(File file, long period, TimeUnit unit) {
+        stopAutosave();
+        
+        autosave = new Autosave(file) {
+            boolean save(OutputStream output) {
+                return writeXML(takeSnapshot(), output);
             }
+        };
+        autosave.start(period, unit);
+    }
+    
+    /**
+     * Stops saving to XML periodically. A save that is in progress is allowed to finish.
+     */
+    public synchronized void stopAutosave() {
+        if (autosave != null) {
+            autosave.stop();
+            autosave = null;
         }
     }
     
     /**
-     * Loads Event data from XML.
+     * Returns true if this Dispatcher is saving to XML periodically.
+     * 
+     * @return true if autosaving, false otherwise
      */
-    private void loadEvents() {
-        if (readDoc != null) {
-            // The root node must be <junctionbox>
-            if (readRoot.getNodeName().equals("junctionbox")) {
-                NodeList eventQueueNodes = readDoc.getElementsByTagName("eventQueue");
-                
-                for (int i = 0; i < eventQueueNodes.getLength(); i++) {
-                    NodeList eventNodes = eventQueueNodes.item(i).getChildNodes();
+    public boolean isAutosaving() {
+        return autosave != null;
+    }
+    
+    /**
+     * Loads Junction data read from XML.
+     * 
+     * @param junctions the saved Junction values
+     */
+    private void loadJunctions(ArrayList<SavedJunction> junctions) {
+        for (SavedJunction saved : junctions) {
+            for (Junction junction : junctionList) {
+                if (saved.label.equals(junction.getLabel()) && junction.isSavable()) {
+                    junction.setCenter(saved.centerX, saved.centerY);
+                    junction.setWidth(saved.width);
+                    junction.setHeight(saved.height);
+                    junction.setAngle(saved.angle);
+                    junction.setToggle(saved.toggle);
                     
-                    for (int j = 0; j < eventNodes.getLength(); j++) {
-                        if (eventNodes.item(j).getNodeName().equals("event")) {
-                            NodeList valueNodes = eventNodes.item(j).getChildNodes();
-                            
-                            int type = 0;
-                            int id = 0;
-                            float x = 0;
-                            float y = 0;
-                            long delay = 0;
-                            
-                            for (int k = 0; k < valueNodes.getLength(); k++) {
-                                Node value = valueNodes.item(k);
-                                if (value.getNodeName().equals("type")) {
-                                    type = Integer.valueOf(value.getTextContent());
-                                }
-                                else if (value.getNodeName().equals("id")) {
-                                    id = Integer.valueOf(value.getTextContent());
-                                }
-                                else if (value.getNodeName().equals("x")) {
-                                    x = Float.valueOf(value.getTextContent());
-                                }
-                                else if (value.getNodeName().equals("y")) {
-                                    y = Float.valueOf(value.getTextContent());
-                                }
-                                else if (value.getNodeName().equals("delay")) {
-                                    delay = Long.valueOf(value.getTextContent());
-                                }
-                            }
-                            
-                            if (type == 0) {
-                                queueAddEvent(id, x, y, delay);
-                            }
-                            else if (type == 1) {
-                                queueUpdateEvent(id, x, y, delay);
-                            }
-                            else if (type == 2) {
-                                queueRemoveEvent(id, delay);
-                            }
-                        }
-                    }
+                    orderJunction(saved.order, junction);
                 }
             }
         }
     }
     
     /**
-     * Loads Junction, Relay, and Event data from XML.
+     * Loads Event data read from XML.
+     * 
+     * @param takes the Takes
+     */
+    private void loadEvents(ArrayList<Take> takes) {
+        for (Take take : takes) {
+            recordingCounter = take.getID();
+            addTake(take);
+        }
+    }
+    
+    /**
+     * Parses a junctionbox XML document.
+     * 
+     * @param input the document
+     * @param firstID the identifier for the first Take, with the rest numbered in order
+     * @return the handler holding what was read
+     * @throws Exception if the document cannot be parsed
+     */
+    private static XMLHandler parseXML(InputStream input, int firstID) throws Exception {
+        XMLHandler handler = new XMLHandler(firstID);
+        SAXParserFactory.newInstance().newSAXParser().parse(input, handler);
+        
+        return handler;
+    }
+    
+    /**
+     * Loads Junction, Relay, and Event data from XML. The document is read as it is parsed, so loading a long recording does
+     * not build the whole document in memory. Nothing is loaded if the document cannot be parsed.
      * 
      * @param input the file to load from
      */
@@ -1370,8 +2281,9 @@ public class Dispatcher implements TuioListener {
             try {
                 // Is the file readable?
                 if (reader.ready()) {
-                    readDoc = builder.parse(input);
-                    readRoot = readDoc.getDocumentElement();
+                    XMLHandler handler = parseXML(input, recordingCounter + 1);
+                    loadJunctions(handler.junctions);
+                    loadEvents(handler.takes);
                 }
             }
             catch (Exception e) {
@@ -1388,8 +2300,84 @@ public class Dispatcher implements TuioListener {
                 }
             }
         }
+    }
+    
+    /**
+     * Saves the recorded Takes in the binary recording format, which is much smaller and faster to load than XML. The Take being
+     * recorded is not saved.
+     * 
+     * @param output the stream to save to
+     */
+    public void saveRecording(OutputStream output) {
+        ArrayList<Take> takes = new ArrayList<Take>(takeList);
+        
+        if (recording) {
+            takes.remove(recordTake);
+        }
         
-        loadJunctions();
-        loadEvents();
+        try {
+            RecordingFile.write(takes.toArray(new Take[0]), new BufferedOutputStream(output));
+        }
+        catch (IOException e) {
+            // Do nothing
+        }
+        finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            }
+            catch (IOException io) {
+                // Do nothing
+            }
+        }
+    }
+    
+    /**
+     * Loads Takes from a file in the binary recording format and layers them on top of the existing Takes. The file is mapped
+     * into memory rather than read, so loading returns quickly and events are read from disk as they are played.
+     * 
+     * @param file the file to load from
+     */
+    public void loadRecording(File file) {
+        try {
+            for (Take take : RecordingFile.read(file, recordingCounter + 1)) {
+                recordingCounter = take.getID();
+                addTake(take);
+            }
+        }
+        catch (IOException e) {
+            // Do nothing
+        }
+    }
+    
+    /**
+     * Converts the event queues of a file saved by saveXML() to the binary recording format. Each event queue becomes a Take.
+     * 
+     * @param input the XML file to convert
+     * @param output the stream to save the recording to
+     */
+    public static void convertXML(InputStream input, OutputStream output) {
+        try {
+            ArrayList<Take> takes = parseXML(input, 0).takes;
+            RecordingFile.write(takes.toArray(new Take[0]), new BufferedOutputStream(output));
+        }
+        catch (Exception e) {
+            // Do nothing
+        }
+        finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+                
+                if (output != null) {
+                    output.close();
+                }
+            }
+            catch (IOException io) {
+                // Do nothing
+            }
+        }
     }
 }
@@ -0,0 +1,166 @@
+package junctionbox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Encoder class holds a pre-encoded OSC message for a single address pattern so that the message can be sent repeatedly
+ * without allocating objects. The address pattern is encoded once when the Encoder is created and the type tag string is only
+ * encoded again when the shape of the arguments changes. Each send overwrites the argument slots in place.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ * @see <a href="http://opensoundcontrol.org/spec-1_0">The Open Sound Control 1.0 Specification</a>
+ */
+final class Encoder {
+    /**
+     * Type tags for a single integer.
+     */
+    static final String INT = ",i";
+    
+    /**
+     * Type tags for a single float.
+     */
+    static final String FLOAT = ",f";
+    
+    /**
+     * Type tags for two floats.
+     */
+    static final String FLOAT_FLOAT = ",ff";
+    
+    /**
+     * Type tags for an integer followed by a float.
+     */
+    static final String INT_FLOAT = ",if";
+    
+    /**
+     * Type tags for an integer followed by two floats.
+     */
+    static final String INT_FLOAT_FLOAT = ",iff";
+    
+    /**
+     * The maximum number of arguments that an Encoder can hold.
+     */
+    private static final int MAX_ARGUMENTS = 4;
+    
+    /**
+     * The address pattern.
+     */
+    private final String address;
+    
+    /**
+     * The encoded message.
+     */
+    private final ByteBuffer buffer;
+    
+    /**
+     * The byte offset where the type tag string begins.
+     */
+    private final int tagStart;
+    
+    /**
+     * The type tag string that is currently encoded.
+     */
+    private String tags;
+    
+    /**
+     * The byte offset where the arguments begin.
+     */
+    private int argumentStart;
+    
+    /**
+     * The length of the encoded message in bytes.
+     */
+    private int length;
+    
+    /**
+     * Constructs a new Encoder for the specified address pattern.
+     * 
+     * @param a the address pattern
+     */
+    Encoder(String a) {
+        address = a;
+        tagStart = padded(a.length());
+        
+        // Room for the address, the longest type tag string and the arguments
+        buffer = ByteBuffer.allocateDirect(tagStart + padded(MAX_ARGUMENTS + 1) + 4*MAX_ARGUMENTS);
+        putString(0, a);
+        setTags(FLOAT);
+    }
+    
+    /**
+     * Returns the address pattern for this Encoder.
+     * 
+     * @return the address pattern
+     */
+    String getAddress() {
+        return address;
+    }
+    
+    /**
+     * Sets the type tag string for the next message. The type tags are only encoded when they differ from the current tags, so
+     * callers should pass one of the constants in this class.
+     * 
+     * @param t the type tag string starting with a comma
+     */
+    void setTags(String t) {
+        buffer.clear();
+        
+        if (t != tags) {
+            putString(tagStart, t);
+            argumentStart = tagStart + padded(t.length());
+            length = argumentStart + 4*(t.length() - 1);
+            tags = t;
+        }
+    }
+    
+    /**
+     * Sets the argument at the specified index. Float arguments are set by passing their raw bits.
+     * 
+     * @param index the argument index
+     * @param i the integer value or float bits
+     */
+    void putInteger(int index, int i) {
+        buffer.putInt(argumentStart + 4*index, i);
+    }
+    
+    /**
+     * Returns the encoded message ready for reading. The returned buffer is reused by the next call to {@link #setTags(String)}.
+     * 
+     * @return the encoded message
+     */
+    ByteBuffer packet() {
+        buffer.limit(length);
+        buffer.position(0);
+        return buffer;
+    }
+    
+    /**
+     * Writes an OSC string at the specified offset, including the terminating null and padding.
+     * 
+     * @param offset the byte offset
+     * @param s the ASCII string to write
+     */
+    private void putString(int offset, String s) {
+        int n = s.length();
+        int end = offset + padded(n);
+        
+        for (int i = 0; i < n; i++) {
+            buffer.put(offset + i, (byte)s.charAt(i));
+        }
+        
+        for (int i = offset + n; i < end; i++) {
+            buffer.put(i, (byte)0);
+        }
+    }
+    
+    /**
+     * Returns the number of bytes that an OSC string of the specified length occupies, including the terminating null and
+     * padding to a multiple of four bytes.
+     * 
+     * @param n the length of the string
+     * @return the padded length
+     */
+    private static int padded(int n) {
+        return (n + 4) & ~3;
+    }
+}
@@ -0,0 +1,504 @@
+package junctionbox;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The EventStore class holds the recorded Contact events of a single take in parallel primitive arrays, one array per field,
+ * instead of one object per event. The arrays are allocated in fixed-size chunks so that the store grows without copying the
+ * events already recorded, and each event costs only the bytes of its fields.
+ * 
+ * <p>Events are appended in time order while recording, so appending is constant time and playback can walk the store from
+ * start to finish. Events that arrive out of order, such as events loaded from a file that was edited by hand, are put back in
+ * order by {@link #sort()}.</p>
+ * 
+ * <p>A store loaded from a recording file reads its events straight from the mapped file, so nothing is copied when the file
+ * is loaded and pages are read from disk as playback reaches them. Each event in the file is a fixed-width record, so any
+ * event can be read without reading those before it. The events are copied into chunks the first time the store is changed.</p>
+ * 
+ * <p>A single thread appends events. Other threads may read events up to {@link #size()} while appending continues, and may
+ * take a {@link #snapshot()} at any time.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class EventStore {
+    /**
+     * Type for an event that adds a Contact.
+     */
+    static final int ADD = 0;
+    
+    /**
+     * Type for an event that updates a Contact.
+     */
+    static final int UPDATE = 1;
+    
+    /**
+     * Type for an event that removes a Contact.
+     */
+    static final int REMOVE = 2;
+    
+    /**
+     * The number of bits in an index within a chunk.
+     */
+    private static final int CHUNK_BITS = 12;
+    
+    /**
+     * The number of events in a chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    /**
+     * The mask for an index within a chunk.
+     */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    /**
+     * The number of bytes in a recorded event: the type, identifier, x, y and delay.
+     */
+    static final int RECORD_SIZE = 21;
+    
+    /**
+     * The number of bits in an index within a mapped segment of records.
+     */
+    static final int SEGMENT_BITS = 26;
+    
+    /**
+     * The number of records in a mapped segment, which keeps each segment under 2 GiB.
+     */
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    
+    /**
+     * The mask for an index within a mapped segment.
+     */
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    
+    /**
+     * The type of each event.
+     */
+    private byte[][] types = new byte[1][];
+    
+    /**
+     * The Contact identifier of each event.
+     */
+    private int[][] ids = new int[1][];
+    
+    /**
+     * The x value of each event.
+     */
+    private float[][] xs = new float[1][];
+    
+    /**
+     * The y value of each event.
+     */
+    private float[][] ys = new float[1][];
+    
+    /**
+     * The delay of each event in nanoseconds from the start of the take.
+     */
+    private long[][] delays = new long[1][];
+    
+    /**
+     * The number of chunks allocated.
+     */
+    private int chunkCount = 0;
+    
+    /**
+     * The number of events.
+     */
+    private volatile int size = 0;
+    
+    /**
+     * Whether the events are in order of delay.
+     */
+    private boolean sorted = true;
+    
+    /**
+     * The largest delay of all events.
+     */
+    private long maxDelay = 0;
+    
+    /**
+     * The segments of records of a store loaded from a file, or null if the events are held in chunks.
+     */
+    private ByteBuffer[] mapped = null;
+    
+    /**
+     * The number of times that events already in the store have been changed or reordered.
+     */
+    private int changes = 0;
+    
+    /**
+     * Returns a store that reads its events from the specified records, which must be in order of delay. Every segment but the
+     * last holds {@link #SEGMENT_SIZE} records.
+     * 
+     * @param segments the segments of records, each starting at position 0
+     * @param count the number of records
+     * @return the store
+     */
+    static EventStore map(ByteBuffer[] segments, int count) {
+        EventStore s = new EventStore();
+        s.mapped = segments;
+        
+        // Records in a file are in order of delay
+        if (count > 0) {
+            int last = count - 1;
+            s.maxDelay = segments[last >>> SEGMENT_BITS].getLong((last & SEGMENT_MASK)*RECORD_SIZE + 13);
+        }
+        
+        s.size = count;
+        
+        return s;
+    }
+    
+    /**
+     * Appends an event.
+     * 
+     * @param type the event type
+     * @param id the Contact identifier
+     * @param x the x value
+     * @param y the y value
+     * @param delay the delay in nanoseconds
+     */
+    void add(int type, int id, float x, float y, long delay) {
+        if (mapped != null) {
+            unmap();
+        }
+        
+        int i = size;
+        int c = i >>> CHUNK_BITS;
+        
+        if (c == chunkCount) {
+            allocateChunk();
+        }
+        
+        if (i > 0 && delay < getDelay(i - 1)) {
+            sorted = false;
+        }
+        
+        if (delay > maxDelay) {
+            maxDelay = delay;
+        }
+        
+        int j = i & CHUNK_MASK;
+        types[c][j] = (byte)type;
+        ids[c][j] = id;
+        xs[c][j] = x;
+        ys[c][j] = y;
+        delays[c][j] = delay;
+        
+        // Publish the event to readers
+        size = i + 1;
+    }
+    
+    /**
+     * Returns the number of events.
+     * 
+     * @return the event count
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the type of the event at the specified index.
+     * 
+     * @param i the index
+     * @return the type
+     */
+    int getType(int i) {
+        ByteBuffer[] m = mapped;
+        
+        if (m != null) {
+            return m[i >>> SEGMENT_BITS].get((i & SEGMENT_MASK)*RECORD_SIZE);
+        }
+        
+        return types[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+    
+    /**
+     * Returns the Contact identifier of the event at the specified index.
+     * 
+     * @param i the index
+     * @return the identifier
+     */
+    int getID(int i) {
+        ByteBuffer[] m = mapped;
+        
+        if (m != null) {
+            return m[i >>> SEGMENT_BITS].getInt((i & SEGMENT_MASK)*RECORD_SIZE + 1);
+        }
+        
+        return ids[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+    
+    /**
+     * Returns the x value of the event at the specified index.
+     * 
+     * @param i the index
+     * @return the x value
+     */
+    float getX(int i) {
+        ByteBuffer[] m = mapped;
+        
+        if (m != null) {
+            return m[i >>> SEGMENT_BITS].getFloat((i & SEGMENT_MASK)*RECORD_SIZE + 5);
+        }
+        
+        return xs[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+    
+    /**
+     * Returns the y value of the event at the specified index.
+     * 
+     * @param i the index
+     * @return the y value
+     */
+    float getY(int i) {
+        ByteBuffer[] m = mapped;
+        
+        if (m != null) {
+            return m[i >>> SEGMENT_BITS].getFloat((i & SEGMENT_MASK)*RECORD_SIZE + 9);
+        }
+        
+        return ys[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+    
+    /**
+     * Returns the delay of the event at the specified index.
+     * 
+     * @param i the index
+     * @return the delay in nanoseconds
+     */
+    long getDelay(int i) {
+        ByteBuffer[] m = mapped;
+        
+        if (m != null) {
+            return m[i >>> SEGMENT_BITS].getLong((i & SEGMENT_MASK)*RECORD_SIZE + 13);
+        }
+        
+        return delays[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+    
+    /**
+     * Returns the number of times that events already in the store have been changed or reordered, which tells whether an
+     * index over the events is still valid. Appending events does not count as a change.
+     * 
+     * @return the change count
+     */
+    int getChanges() {
+        return changes;
+    }
+    
+    /**
+     * Returns the largest delay of all events.
+     * 
+     * @return the largest delay in nanoseconds or 0 if there are no events
+     */
+    long getLastDelay() {
+        // Read the size first so that the largest delay is at least as new
+        int n = size;
+        
+        return n > 0 ? maxDelay : 0;
+    }
+    
+    /**
+     * Removes all events and releases their chunks.
+     */
+    synchronized void clear() {
+        size = 0;
+        chunkCount = 0;
+        sorted = true;
+        maxDelay = 0;
+        mapped = null;
+        changes++;
+        types = new byte[1][];
+        ids = new int[1][];
+        xs = new float[1][];
+        ys = new float[1][];
+        delays = new long[1][];
+    }
+    
+    /**
+     * Puts the events in order of delay if any were appended out of order. Events with equal delays keep their
+     * relative order.
+     */
+    void sort() {
+        int n = size;
+        
+        if (sorted || n < 2) {
+            sorted = true;
+            return;
+        }
+        
+        // Sort an index permutation by delay, then copy the columns through it
+        int[] order = new int[n];
+        int[] work = new int[n];
+        
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        
+        mergeSort(order, work, 0, n);
+        
+        EventStore s = new EventStore();
+        
+        for (int i = 0; i < n; i++) {
+            int k = order[i];
+            s.add(getType(k), getID(k), getX(k), getY(k), getDelay(k));
+        }
+        
+        adopt(s);
+    }
+    
+    /**
+     * Returns a store that holds the events appended so far and is not changed by later changes to this store. The snapshot
+     * shares the chunks of this store, which is safe because appending never writes to an event that is already in the store
+     * and sorting builds new chunks. Every change that replaces the columns or the chunk count holds the same lock as this
+     * method, so a snapshot never mixes the columns of a store before and after it was sorted, unmapped or cleared.
+     * 
+     * @return the snapshot
+     */
+    synchronized EventStore snapshot() {
+        EventStore s = new EventStore();
+        
+        // Read the size first so that every chunk it covers is visible
+        s.size = size;
+        s.types = types.clone();
+        s.ids = ids.clone();
+        s.xs = xs.clone();
+        s.ys = ys.clone();
+        s.delays = delays.clone();
+        s.chunkCount = chunkCount;
+        s.sorted = sorted;
+        s.maxDelay = maxDelay;
+        s.mapped = mapped;
+        
+        return s;
+    }
+    
+    /**
+     * Writes the events as fixed-width records in order of index.
+     * 
+     * @param output the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    void write(DataOutputStream output) throws IOException {
+        int n = size;
+        
+        for (int i = 0; i < n; i++) {
+            output.writeByte(getType(i));
+            output.writeInt(getID(i));
+            output.writeFloat(getX(i));
+            output.writeFloat(getY(i));
+            output.writeLong(getDelay(i));
+        }
+    }
+    
+    /**
+     * Copies the events of a store loaded from a file into chunks so that they can be changed.
+     */
+    private void unmap() {
+        int n = size;
+        EventStore s = new EventStore();
+        
+        for (int i = 0; i < n; i++) {
+            s.add(getType(i), getID(i), getX(i), getY(i), getDelay(i));
+        }
+        
+        adopt(s);
+    }
+    
+    /**
+     * Takes over the chunks of another store that holds the same events.
+     * 
+     * @param s the store to take the chunks from
+     */
+    private synchronized void adopt(EventStore s) {
+        types = s.types;
+        ids = s.ids;
+        xs = s.xs;
+        ys = s.ys;
+        delays = s.delays;
+        chunkCount = s.chunkCount;
+        sorted = s.sorted;
+        maxDelay = s.maxDelay;
+        mapped = null;
+        changes++;
+    }
+    
+    /**
+     * Stable merge sort of event indices by delay.
+     * 
+     * @param a the indices to sort
+     * @param work scratch space the same length as the indices
+     * @param from the first index to sort, inclusive
+     * @param to the last index to sort, exclusive
+     */
+    private void mergeSort(int[] a, int[] work, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        
+        int mid = (from + to) >>> 1;
+        mergeSort(a, work, from, mid);
+        mergeSort(a, work, mid, to);
+        
+        if (getDelay(a[mid - 1]) <= getDelay(a[mid])) {
+            return;
+        }
+        
+        int i = from;
+        int j = mid;
+        int k = from;
+        
+        while (i < mid && j < to) {
+            work[k++] = getDelay(a[j]) < getDelay(a[i]) ? a[j++] : a[i++];
+        }
+        
+        while (i < mid) {
+            work[k++] = a[i++];
+        }
+        
+        while (j < to) {
+            work[k++] = a[j++];
+        }
+        
+        System.arraycopy(work, from, a, from, to - from);
+    }
+    
+    /**
+     * Allocates the next chunk for every column.
+     */
+    private synchronized void allocateChunk() {
+        if (chunkCount == types.length) {
+            int length = chunkCount*2;
+            types = grow(types, new byte[length][]);
+            ids = grow(ids, new int[length][]);
+            xs = grow(xs, new float[length][]);
+            ys = grow(ys, new float[length][]);
+            delays = grow(delays, new long[length][]);
+        }
+        
+        types[chunkCount] = new byte[CHUNK_SIZE];
+        ids[chunkCount] = new int[CHUNK_SIZE];
+        xs[chunkCount] = new float[CHUNK_SIZE];
+        ys[chunkCount] = new float[CHUNK_SIZE];
+        delays[chunkCount] = new long[CHUNK_SIZE];
+        chunkCount++;
+    }
+    
+    /**
+     * Copies the chunk references of a column into a larger array.
+     * 
+     * @param old the current chunks
+     * @param grown the larger array
+     * @return the larger array
+     */
+    private static <T> T[] grow(T[] old, T[] grown) {
+        System.arraycopy(old, 0, grown, 0, old.length);
+        
+        return grown;
+    }
+}
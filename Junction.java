@@ -1,9 +1,7 @@
 package junctionbox;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.ArrayList;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * The Junction class defines a section of a touch interface that represents the intersection among Contacts (touches),
@@ -84,9 +82,9 @@ public class Junction {
     private boolean live = true;
     
     /**
-     * The master Contact map, index by the unique identifier associated with each Contact.
+     * The master Contact table, indexed by the unique identifier associated with each Contact.
      */
-    private ConcurrentHashMap<Integer,Contact> contactMap;
+    private ContactTable contactTable;
     
     /**
      * The master list of subjunctions.
@@ -133,6 +131,61 @@ public class Junction {
      */
     private float angle = 0.0f;
     
+    /**
+     * The angle that the cached rotation terms were computed for.
+     */
+    private float cachedAngle = Float.NaN;
+    
+    /**
+     * The cosine of the negative angle, used to rotate points into the frame of this Junction.
+     */
+    private float cosAngle = 1.0f;
+    
+    /**
+     * The sine of the negative angle, used to rotate points into the frame of this Junction.
+     */
+    private float sinAngle = 0.0f;
+    
+    /**
+     * Half of the width.
+     */
+    private float halfWidth;
+    
+    /**
+     * Half of the height.
+     */
+    private float halfHeight;
+    
+    /**
+     * The reciprocal of the squared half width, used to test ellipses.
+     */
+    private float ellipseX;
+    
+    /**
+     * The reciprocal of the squared half height, used to test ellipses.
+     */
+    private float ellipseY;
+    
+    /**
+     * The minimum x value of the axis-aligned box that contains this Junction, not including subjunctions.
+     */
+    private float minX;
+    
+    /**
+     * The minimum y value of the axis-aligned box that contains this Junction, not including subjunctions.
+     */
+    private float minY;
+    
+    /**
+     * The maximum x value of the axis-aligned box that contains this Junction, not including subjunctions.
+     */
+    private float maxX;
+    
+    /**
+     * The maximum y value of the axis-aligned box that contains this Junction, not including subjunctions.
+     */
+    private float maxY;
+    
     /**
      * The current toggle state.
      */
@@ -224,184 +277,20 @@ public class Junction {
     private Relay targetRelay;
     
     /**
-     * Determines whether to relay the active versus non-active state.
-     */
-    private boolean relayActive = false;
-    
-    /**
-     * Determines whether to relay the current state of the toggle.
-     */
-    private boolean relayToggle = false;
-    
-    /**
-     * Determines whether to relay the rotation angle.
-     */
-    private boolean relayRotate = false;
-    
-    /**
-     * Determines whether to relay the rotation angle with 1 Contact.
-     */
-    private boolean relayRotate1 = false;
-    
-    /**
-     * Determines whether to relay the rotation angle with 2 Contacts.
-     */
-    private boolean relayRotate2 = false;
-    
-    /**
-     * Determines whether to relay the current scale value.
-     */
-    private boolean relayScale = false;
-    
-    /**
-     * Determines whether to relay the current width value.
-     */
-    private boolean relayScaleWidth = false;
-    
-    /**
-     * Determines whether to relay the current height value.
+     * An empty array of Encoders shared by all Actions that have no messages.
      */
-    private boolean relayScaleHeight = false;
+    private static final Encoder[] NO_ENCODERS = new Encoder[0];
     
     /**
-     * Determines whether to relay the current center x value.
+     * The Encoders for the messages mapped to each Action, indexed by the ordinal of the Action. The table and its arrays are
+     * never changed after they are published, so the send paths iterate them without locking.
      */
-    private boolean relayTranslateX = false;
+    private volatile Encoder[][] encoderTable;
     
     /**
-     * Determines whether to relay the current center y value.
+     * A bit for each Action, indexed by ordinal, that is set when the Action has at least one message mapped.
      */
-    private boolean relayTranslateY = false;
-    
-    /**
-     * Determines whether to relay the current center x,y values in a single message.
-     */
-    private boolean relayTranslateXY = false;
-    
-    /**
-     * Determines whether to relay contact x values.
-     */
-    private boolean relayContactX = false;
-    
-    /**
-     * Determines whether to relay contact y values.
-     */
-    private boolean relayContactY = false;
-    
-    /**
-     * Determines whether to relay both contact x and y values.
-     */
-    private boolean relayContact = false;
-    
-    /**
-     * Determines whether to relay contact r values.
-     */
-    private boolean relayContactR = false;
-    
-    /**
-     * Determines whether to relay contact theta values.
-     */
-    private boolean relayContactTheta = false;
-    
-    /**
-     * Determines whether to relay the number of Contacts.
-     */
-    private boolean relayContactCount = false;
-    
-    /**
-     * Determines whether to relay the number of Rotations.
-     */
-    private boolean relayRotationCount = false;
-    
-    /**
-     * The list of messages that will send the current active state value.
-     */
-    private Vector<String> activeList;
-    
-    /**
-     * The list of messages that will send the current toggle value.
-     */
-    private Vector<String> toggleList;
-    
-    /**
-     * The list of messages that will send the current rotation angle.
-     */
-    private Vector<String> rotateList;
-    
-    /**
-     * The list of messages that will send the current rotation angle with 1 Contact.
-     */
-    private Vector<String> rotate1List;
-    
-    /**
-     * The list of messages that will send the current rotation angle with 2 Contacts.
-     */
-    private Vector<String> rotate2List;
-    
-    /**
-     * The list of messages that will send the current scale value.
-     */
-    private Vector<String> scaleList;
-    
-    /**
-     * The list of messages that will send the current width value.
-     */
-    private Vector<String> scaleWidthList;
-    
-    /**
-     * The list of messages that will send the current height value.
-     */
-    private Vector<String> scaleHeightList;
-    
-    /**
-     * The list of Relays that will send the current center x value.
-     */
-    private Vector<String> translateXList;
-    
-    /**
-     * The list of Relays that will send the current center y value.
-     */
-    private Vector<String> translateYList;
-    
-    /**
-     * The list of Relays that will send the current center x,y values.
-     */
-    private Vector<String> translateXYList;
-    
-    /**
-     * The list of Relays that will send contact x values.
-     */
-    private Vector<String> contactXList;
-    
-    /**
-     * The list of Relays that will send contact y values.
-     */
-    private Vector<String> contactYList;
-    
-    /**
-     * The list of Relays that will send both contact x and y values.
-     */
-    private Vector<String> contactList;
-    
-    /**
-     * The list of messages that send contact r values.
-     */
-    private Vector<String> contactRList;
-    
-    /**
-     * The list of messages that send contact theta values.
-     */
-    private Vector<String> contactThetaList;
-    
-    /**
-     * The list of Relays that will send the current Contact count.
-     */
-    private Vector<String> contactCountList;
-    
-    /**
-     * The list of Relays that will send the current Rotation count.
-     */
-    private Vector<String> rotationCountList;
+    private volatile int relayMask = 0;
     
     /**
      * The old distance between two Contacts. Used for the scaling gesture.
@@ -433,6 +322,21 @@ public class Junction {
      */
     private boolean savable = false;
     
+    /**
+     * The Junction that contains this Junction, or null if this is a top-level Junction.
+     */
+    private Junction parent;
+    
+    /**
+     * The spatial index of the Dispatcher that holds this Junction, or null if it is not indexed.
+     */
+    SpatialIndex index;
+    
+    /**
+     * The slot of this Junction in its spatial index.
+     */
+    int indexSlot = -1;
+    
     /**
      * Constructs a new Junction with the specified values for box width, box height, center x, center y, width, and height.
      * The box width and height refer to the total size of the touch interface.
@@ -446,38 +350,22 @@ public class Junction {
      * @param h the height
      */
     public Junction(float bw, float bh, float x, float y, float w, float h) {
-        contactMap = new ConcurrentHashMap<Integer,Contact>();
+        contactTable = new ContactTable();
         junctionList = new CopyOnWriteArrayList<Junction>();
         
+        encoderTable = new Encoder[Action.values().length][];
+        Arrays.fill(encoderTable, NO_ENCODERS);
+        
         // Set internal values
         centerX = x;
         centerY = y;
         width = w;
         height = h;
+        updateGeometry();
         
         // Create a rectangular junction by default
         shape = RECT;
         
-        // Create message lists
-        activeList = new Vector<String>();
-        toggleList = new Vector<String>();
-        rotateList = new Vector<String>();
-        rotate1List = new Vector<String>();
-        rotate2List = new Vector<String>();
-        scaleList = new Vector<String>();
-        scaleWidthList = new Vector<String>();
-        scaleHeightList = new Vector<String>();
-        translateXList = new Vector<String>();
-        translateYList = new Vector<String>();
-        translateXYList = new Vector<String>();
-        contactXList = new Vector<String>();
-        contactYList = new Vector<String>();
-        contactList = new Vector<String>();
-        contactRList = new Vector<String>();
-        contactThetaList = new Vector<String>();
-        contactCountList = new Vector<String>();
-        rotationCountList = new Vector<String>();
-        
         // Set default translation limits
         minTranslateX = 0.0f;
         maxTranslateX = bw;
@@ -747,9 +635,7 @@ public class Junction {
      * @param port the port number of the target
      */
     public void setTarget(String address, int port) {
-        targetAddress = address;
-        targetPort = port;
-        targetRelay = new Relay(targetAddress, targetPort);
+        setTarget(new Relay(address, port));
     }
     
     /**
@@ -757,7 +643,32 @@ public class Junction {
      * 
      * @param r the Relay to use for the target
      */
-    public void setTarget(Relay r) {
+    public synchronized void setTarget(Relay r) {
+        // Compile the mapped messages for the new Relay
+        Encoder[][] table = new Encoder[encoderTable.length][];
+        
+        for (int i = 0; i < table.length; i++) {
+            Encoder[] old = encoderTable[i];
+            table[i] = old.length == 0 ? NO_ENCODERS : new Encoder[old.length];
+            
+            for (int j = 0; j < old.length; j++) {
+                r.retainMessage(old[j].getAddress());
+                table[i][j] = r.getEncoder(old[j].getAddress());
+            }
+        }
+        
+        // Release the mappings on the old Relay after retaining them on the new one, which may be the same Relay
+        Relay previous = targetRelay;
+        
+        if (previous != null) {
+            for (Encoder[] encoders : encoderTable) {
+                for (Encoder e : encoders) {
+                    previous.releaseMessage(e.getAddress());
+                }
+            }
+        }
+        
+        encoderTable = table;
         targetRelay = r;
         targetAddress = targetRelay.getIPAddress();
         targetPort = targetRelay.getPort();
@@ -791,13 +702,10 @@ public class Junction {
         setCenterX(x);
         setCenterY(y);
         
-        if (relayTranslateXY) {
+        if (relays(Action.TRANSLATE)) {
             if (targetRelay != null) {
-                for (String s : translateXYList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addFloat(s, normal(centerX, minTranslateX, maxTranslateX));
-                    targetRelay.addFloat(s, normal(centerY, minTranslateY, maxTranslateY));
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.TRANSLATE)) {
+                    targetRelay.send(e, normal(centerX, minTranslateX, maxTranslateX), normal(centerY, minTranslateY, maxTranslateY));
                 }
             }
         }
@@ -833,13 +741,13 @@ public class Junction {
             }
             
             if (centerX != holdX) {
-                if (relayTranslateX) {
+                updateGeometry();
+                
+                if (relays(Action.TRANSLATE_X)) {
                     // Send changes in x
                     if (targetRelay != null) {
-                        for (String s : translateXList) {
-                            targetRelay.resetMessage(s);
-                            targetRelay.addFloat(s, normal(centerX, minTranslateX, maxTranslateX));
-                            targetRelay.send(s);
+                        for (Encoder e : encoders(Action.TRANSLATE_X)) {
+                            targetRelay.send(e, normal(centerX, minTranslateX, maxTranslateX));
                         }
                     }
                 }
@@ -876,13 +784,13 @@ public class Junction {
             }
             
             if (centerY != holdY) {
-                if (relayTranslateY) {
+                updateGeometry();
+                
+                if (relays(Action.TRANSLATE_Y)) {
                     // Send changes in y
                     if (targetRelay != null) {
-                        for (String s : translateYList) {
-                            targetRelay.resetMessage(s);
-                            targetRelay.addFloat(s, normal(centerY, minTranslateY, maxTranslateY));
-                            targetRelay.send(s);
+                        for (Encoder e : encoders(Action.TRANSLATE_Y)) {
+                            targetRelay.send(e, normal(centerY, minTranslateY, maxTranslateY));
                         }
                     }
                 }
@@ -929,12 +837,12 @@ public class Junction {
             }
             
             if (width != holdWidth) {
-                if (relayScaleWidth) {
+                updateGeometry();
+                
+                if (relays(Action.SCALE_WIDTH)) {
                     if (targetRelay != null) {
-                        for (String s : scaleWidthList) {
-                            targetRelay.resetMessage(s);
-                            targetRelay.addFloat(s, normal(width, minWidth, maxWidth));
-                            targetRelay.send(s);
+                        for (Encoder e : encoders(Action.SCALE_WIDTH)) {
+                            targetRelay.send(e, normal(width, minWidth, maxWidth));
                         }
                     }
                 }
@@ -981,12 +889,12 @@ public class Junction {
             }
             
             if (height != holdHeight) {
-                if (relayScaleHeight) {
+                updateGeometry();
+                
+                if (relays(Action.SCALE_HEIGHT)) {
                     if (targetRelay != null) {
-                        for (String s : scaleHeightList) {
-                            targetRelay.resetMessage(s);
-                            targetRelay.addFloat(s, normal(height, minHeight, maxHeight));
-                            targetRelay.send(s);
+                        for (Encoder e : encoders(Action.SCALE_HEIGHT)) {
+                            targetRelay.send(e, normal(height, minHeight, maxHeight));
                         }
                     }
                 }
@@ -1014,13 +922,10 @@ public class Junction {
         setHeight(h);
         
         // Send scale as a normalized ratio of areas
-        if (relayScale) {
+        if (relays(Action.SCALE)) {
             if (targetRelay != null) {
-                for (String s : scaleList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addFloat(s, normal(width, minWidth, maxWidth));
-                    targetRelay.addFloat(s, normal(height, minHeight, maxHeight));
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.SCALE)) {
+                    targetRelay.send(e, normal(width, minWidth, maxWidth), normal(height, minHeight, maxHeight));
                 }
             }
         }
@@ -1061,47 +966,43 @@ public class Junction {
             
             // Only send messages if angle value has changed
             if (angle != holdAngle) {
-                if (relayRotate) {
+                updateGeometry();
+                
+                if (relays(Action.ROTATE)) {
                     if (targetRelay != null) {
-                        for (String s : rotateList) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
                 
-                if (relayRotate1 && getContactCount() == 1) {
+                if (relays(Action.ROTATE_1) && getContactCount() == 1) {
                     if (targetRelay != null) {
-                        for (String s : rotate1List) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE_1)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
                 
-                if (relayRotate2 && getContactCount() == 2) {
+                if (relays(Action.ROTATE_2) && getContactCount() == 2) {
                     if (targetRelay != null) {
-                        for (String s : rotate2List) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE_2)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
@@ -1109,7 +1010,7 @@ public class Junction {
             
             // Only send messages if rotation count has changed
             if (rotationCount != holdRotationCount) {
-                if (relayRotationCount) {
+                if (relays(Action.COUNT_ROTATIONS)) {
                     relayRotationCount();
                 }
             }
@@ -1136,47 +1037,43 @@ public class Junction {
             
             // Only send messages if angle value has changed
             if (angle != holdAngle) {
-                if (relayRotate) {
+                updateGeometry();
+                
+                if (relays(Action.ROTATE)) {
                     if (targetRelay != null) {
-                        for (String s : rotateList) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
                 
-                if (relayRotate1 && contactCount == 1) {
+                if (relays(Action.ROTATE_1) && contactCount == 1) {
                     if (targetRelay != null) {
-                        for (String s : rotate1List) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE_1)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
                 
-                if (relayRotate2 && contactCount == 2) {
+                if (relays(Action.ROTATE_2) && contactCount == 2) {
                     if (targetRelay != null) {
-                        for (String s : rotate2List) {
-                            targetRelay.resetMessage(s);
+                        for (Encoder e : encoders(Action.ROTATE_2)) {
                             if (limitAngle) {
-                                targetRelay.addFloat(s, normal(angle, minAngle, maxAngle));
+                                targetRelay.send(e, normal(angle, minAngle, maxAngle));
                             }
                             else {
-                                targetRelay.addFloat(s, normal(angle, 0.0f, TWO_PI));
+                                targetRelay.send(e, normal(angle, 0.0f, TWO_PI));
                             }
-                            targetRelay.send(s);
                         }
                     }
                 }
@@ -1184,7 +1081,7 @@ public class Junction {
             
             // Only send messages if rotation count has changed
             if (rotationCount != holdRotationCount) {
-                if (relayRotationCount) {
+                if (relays(Action.COUNT_ROTATIONS)) {
                     relayRotationCount();
                 }
             }
@@ -1483,7 +1380,13 @@ public class Junction {
         j.limitTranslationX(minTranslateX, maxTranslateX);
         j.limitTranslationY(minTranslateY, maxTranslateY);
         
+        if (targetRelay != null && targetRelay.isCoalescing()) {
+            j.setCoalescing(true);
+        }
+        
+        j.parent = this;
         junctionList.add(j);
+        invalidateBounds();
     }
     
     /**
@@ -1494,6 +1397,8 @@ public class Junction {
     public void removeJunction(Junction j) {
         if (junctionList.contains(j)) {
             junctionList.remove(j);
+            j.parent = null;
+            invalidateBounds();
         }
     }
     
@@ -1576,18 +1481,16 @@ public class Junction {
         
         if (!added) {
             // Only send an active message when a new Contact is added to an empty map
-            if (relayActive && contactMap.isEmpty()) {
+            if (relays(Action.ACTIVATE) && contactTable.isEmpty()) {
                 if (targetRelay != null) {
-                    for (String s : activeList) {
-                        targetRelay.resetMessage(s);
-                        targetRelay.addInteger(s, 1);
-                        targetRelay.send(s);
+                    for (Encoder e : encoders(Action.ACTIVATE)) {
+                        targetRelay.sendEvent(e, 1);
                     }
                 }
             }
             
             // Now put new Contact into map
-            contactMap.put(id, new Contact(id, x, y));
+            contactTable.add(id, x, y);
             
             // Change toggle for new contacts
             if (toggleOn) {
@@ -1597,25 +1500,21 @@ public class Junction {
                 toggleOn = true;
             }
             
-            if (relayToggle) {
+            if (relays(Action.TOGGLE)) {
                 if (targetRelay != null) {
-                    for (String s : toggleList) {
-                        targetRelay.resetMessage(s);
-                        
+                    for (Encoder e : encoders(Action.TOGGLE)) {
                         if (toggleOn) {
-                            targetRelay.addInteger(s, 1);
+                            targetRelay.sendEvent(e, 1);
                         }
                         else {
-                            targetRelay.addInteger(s, 0);
+                            targetRelay.sendEvent(e, 0);
                         }
-                        
-                        targetRelay.send(s);
                     }
                 }
             }
             
             // Contact count
-            if (relayContactCount) {
+            if (relays(Action.COUNT_CONTACTS)) {
                 relayContactCount();
             }
         }
@@ -1649,18 +1548,14 @@ public class Junction {
             float da = 0;
             float ds = 0;
             
-            if (contactMap.containsKey(id)) {
-                // Get the contact to be updated
-                Contact contact = contactMap.get(id);
-                
+            // Move the contact to be updated, reading its old values under the same lock
+            long moved = contactTable.move(id, x, y);
+            
+            if (moved != ContactTable.MISSING) {
                 float newX = x;
                 float newY = y;
-                float oldX = contact.getX();
-                float oldY = contact.getY();
-                
-                // New contact values
-                contact.setX(x);
-                contact.setY(y);
+                float oldX = ContactTable.movedX(moved);
+                float oldY = ContactTable.movedY(moved);
                 
                 // The distance between old and new center points
                 float d = dist(newX, newY, oldX, oldY);
@@ -1670,44 +1565,31 @@ public class Junction {
                     // Contacts must be inside of a Junction to be mappable
                     if (inside(x,y)) {
                         if (shape == RECT) {
-                            if (relayContact) {
-                                for (String s : contactList) {
-                                    targetRelay.resetMessage(s);
-                                    targetRelay.addInteger(s, id);
-                                    targetRelay.addFloat(s, normal(oldX-(centerX-(width/2)), 0, width));
-                                    targetRelay.addFloat(s, 1-normal(oldY-(centerY-(height/2)), height, 0));
-                                    targetRelay.send(s);
+                            if (relays(Action.CONTACT)) {
+                                for (Encoder e : encoders(Action.CONTACT)) {
+                                    targetRelay.send(e, id, normal(oldX-(centerX-(width/2)), 0, width), 1-normal(oldY-(centerY-(height/2)), height, 0));
                                 }
                             }
                             
-                            if (relayContactX) {
+                            if (relays(Action.CONTACT_X)) {
                                 if (targetRelay != null) {
-                                    for (String s : contactXList) {
-                                        targetRelay.resetMessage(s);
-                                        targetRelay.addInteger(s, id);
-                                        targetRelay.addFloat(s, normal(oldX-(centerX-(width/2)), 0, width));
-                                        targetRelay.send(s);
+                                    for (Encoder e : encoders(Action.CONTACT_X)) {
+                                        targetRelay.send(e, id, normal(oldX-(centerX-(width/2)), 0, width));
                                     }
                                 }
                             }
                             
-                            if (relayContactY) {
+                            if (relays(Action.CONTACT_Y)) {
                                 if (targetRelay != null) {
-                                    for (String s : contactYList) {
-                                        targetRelay.resetMessage(s);
-                                        targetRelay.addInteger(s, id);
-                                        targetRelay.addFloat(s, 1-normal(oldY-(centerY-(height/2)), height, 0));
-                                        targetRelay.send(s);
+                                    for (Encoder e : encoders(Action.CONTACT_Y)) {
+                                        targetRelay.send(e, id, 1-normal(oldY-(centerY-(height/2)), height, 0));
                                     }
                                 }
                             }
                         }
                         else if (shape == ELLIPSE) {
-                            if (relayContact) {
-                                for (String s : contactList) {
-                                    targetRelay.resetMessage(s);
-                                    targetRelay.addInteger(s, id);
-                                    
+                            if (relays(Action.CONTACT)) {
+                                for (Encoder e : encoders(Action.CONTACT)) {
                                     double theta = Math.atan2(newY-centerY, newX-centerX);
                                     
                                     if (theta < 0) {
@@ -1717,8 +1599,10 @@ public class Junction {
                                         theta = Math.abs(theta - TWO_PI);
                                     }
                                     
+                                    float r;
+                                    
                                     if (width == height) {
-                                        targetRelay.addFloat(s, normal(dist(newX, newY, centerX, centerY), 0, width/2));
+                                        r = normal(dist(newX, newY, centerX, centerY), 0, width/2);
                                     }
                                     else {
                                         // Getting the point on an ellipse (for normalizing) requires more math
@@ -1726,21 +1610,17 @@ public class Junction {
                                         float edgeX = centerX + (float)((width/2)*Math.cos(t));
                                         float edgeY = centerY + (float)((height/2)*Math.sin(t));
                                         float edge = dist(edgeX, edgeY, centerX, centerY);
-                                        targetRelay.addFloat(s, normal(dist(newX, newY, centerX, centerY), 0, edge));
+                                        r = normal(dist(newX, newY, centerX, centerY), 0, edge);
                                     }
                                     
-                                    targetRelay.addFloat(normal((float)theta, 0, TWO_PI));
-                                    targetRelay.send(s);
+                                    targetRelay.send(e, id, r, normal((float)theta, 0, TWO_PI));
                                 }
                             }
                             
-                            if (relayContactR) {
-                                for (String s : contactRList) {
-                                    targetRelay.resetMessage(s);
-                                    targetRelay.addInteger(s, id);
-                                    
+                            if (relays(Action.CONTACT_R)) {
+                                for (Encoder e : encoders(Action.CONTACT_R)) {
                                     if (width == height) {
-                                        targetRelay.addFloat(s, normal(dist(newX, newY, centerX, centerY), 0, width/2));
+                                        targetRelay.send(e, id, normal(dist(newX, newY, centerX, centerY), 0, width/2));
                                     }
                                     else {
                                         double theta = Math.atan2(newY-centerY, newX-centerX);
@@ -1757,18 +1637,13 @@ public class Junction {
                                         float edgeX = centerX + (float)((width/2)*Math.cos(t));
                                         float edgeY = centerY + (float)((height/2)*Math.sin(t));
                                         float edge = dist(edgeX, edgeY, centerX, centerY);
-                                        targetRelay.addFloat(s, normal(dist(newX, newY, centerX, centerY), 0, edge));
+                                        targetRelay.send(e, id, normal(dist(newX, newY, centerX, centerY), 0, edge));
                                     }
-                                    
-                                    targetRelay.send(s);
                                 }
                             }
                             
-                            if (relayContactTheta) {
-                                for (String s : contactThetaList) {
-                                    targetRelay.resetMessage(s);
-                                    targetRelay.addInteger(s, id);
-                                    
+                            if (relays(Action.CONTACT_THETA)) {
+                                for (Encoder e : encoders(Action.CONTACT_THETA)) {
                                     double theta = Math.atan2(newY-centerY, newX-centerX);
                                     
                                     if (theta < 0) {
@@ -1778,8 +1653,7 @@ public class Junction {
                                         theta = Math.abs(theta - TWO_PI);
                                     }
                                     
-                                    targetRelay.addFloat(normal((float)theta, 0, TWO_PI));
-                                    targetRelay.send(s);
+                                    targetRelay.send(e, id, normal((float)theta, 0, TWO_PI));
                                 }
                             }
                         }
@@ -1789,7 +1663,7 @@ public class Junction {
                     dx = newX - oldX;
                     dy = newY - oldY;
                     
-                    contactCount = contactMap.size();
+                    contactCount = contactTable.size();
                     
                     switch (contactCount) {
                         case 1:
@@ -1824,11 +1698,10 @@ public class Junction {
                             }
                             
                             if (rotatable2) {
-                                Contact[] contacts = new Contact[2];
-                                contactMap.values().toArray(contacts);
+                                float theta = contactTable.firstTwoAngle();
                                 
-                                if (contacts[0] != null && contacts[1] != null) {
-                                    newContactTheta = (float)(Math.atan2((double)contacts[0].getY()-contacts[1].getY(), (double)contacts[0].getX()-contacts[1].getX()));
+                                if (!Float.isNaN(theta)) {
+                                    newContactTheta = theta;
                                     
                                     if (oldContactTheta != 0) {
                                         // Clockwise
@@ -1852,11 +1725,10 @@ public class Junction {
                             
                             if (scalable) {
                                 // Get distance between 2 contacts
-                                Contact[] contacts = new Contact[2];
-                                contactMap.values().toArray(contacts);
+                                float distance = contactTable.firstTwoDistance();
                                 
-                                if (contacts[0] != null && contacts[1] != null) {
-                                    newContactDist = dist(contacts[0].getX(), contacts[0].getY(), contacts[1].getX(), contacts[1].getY());
+                                if (!Float.isNaN(distance)) {
+                                    newContactDist = distance;
                                     // Do not scale on initial 2 touches
                                     if (oldContactDist != 0) {
                                         ds = newContactDist - oldContactDist;
@@ -1894,12 +1766,10 @@ public class Junction {
      * @param id the unique identifier for the Contact
      */
     public void removeContact(int id) {
-        if (contactMap.containsKey(id)) {
-            contactMap.remove(id);
-        }
+        contactTable.remove(id);
         
         // Reset distance values for less than 2 Contacts
-        if (contactMap.values().size() < 2) {
+        if (contactTable.size() < 2) {
             oldContactDist = 0;
             newContactDist = 0;
             oldContactTheta = 0;
@@ -1907,17 +1777,15 @@ public class Junction {
         }
         
         // Contact count has changed
-        if (relayContactCount) {
+        if (relays(Action.COUNT_CONTACTS)) {
             relayContactCount();
         }
         
         // Only send inactive if this is the very last contact
-        if (relayActive && contactMap.isEmpty()) {
+        if (relays(Action.ACTIVATE) && contactTable.isEmpty()) {
             if (targetRelay != null) {
-                for (String s : activeList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addInteger(s, 0);
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.ACTIVATE)) {
+                    targetRelay.sendEvent(e, 0);
                 }
             }
         }
@@ -1936,7 +1804,7 @@ public class Junction {
      * Removes all Contacts contained in this Junction.
      */
     public void clearContacts() {
-        contactMap.clear();
+        contactTable.clear();
         
         oldContactDist = 0;
         newContactDist = 0;
@@ -1944,17 +1812,15 @@ public class Junction {
         newContactTheta = 0;
         
         // Contact count has changed
-        if (relayContactCount) {
+        if (relays(Action.COUNT_CONTACTS)) {
             relayContactCount();
         }
         
         // Junction is no longer active
-        if (relayActive) {
+        if (relays(Action.ACTIVATE)) {
             if (targetRelay != null) {
-                for (String s : activeList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addInteger(s, 0);
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.ACTIVATE)) {
+                    targetRelay.sendEvent(e, 0);
                 }
             }
         }
@@ -1966,6 +1832,68 @@ public class Junction {
         }
     }
     
+    /**
+     * Starts collecting the messages sent by this Junction and its subjunctions into bundles, one per target Relay.
+     */
+    protected void beginBundle() {
+        if (targetRelay != null) {
+            targetRelay.beginBundle();
+        }
+        
+        if (!junctionList.isEmpty()) {
+            for (Junction j : junctionList) {
+                j.beginBundle();
+            }
+        }
+    }
+    
+    /**
+     * Sends the bundles started by {@link #beginBundle()}.
+     */
+    protected void flushBundle() {
+        if (!junctionList.isEmpty()) {
+            for (Junction j : junctionList) {
+                j.flushBundle();
+            }
+        }
+        
+        if (targetRelay != null) {
+            targetRelay.flushBundle();
+        }
+    }
+    
+    /**
+     * Determines whether the Relays of this Junction and its subjunctions hold messages until {@link #flushFrame()} is called.
+     * 
+     * @param c true to coalesce messages, false to send them immediately
+     */
+    protected void setCoalescing(boolean c) {
+        if (targetRelay != null) {
+            targetRelay.setCoalescing(c);
+        }
+        
+        if (!junctionList.isEmpty()) {
+            for (Junction j : junctionList) {
+                j.setCoalescing(c);
+            }
+        }
+    }
+    
+    /**
+     * Sends the messages held by the Relays of this Junction and its subjunctions.
+     */
+    protected void flushFrame() {
+        if (!junctionList.isEmpty()) {
+            for (Junction j : junctionList) {
+                j.flushFrame();
+            }
+        }
+        
+        if (targetRelay != null) {
+            targetRelay.flushFrame();
+        }
+    }
+    
     /**
      * Returns true if this Junction contains the specified Contact.
      * 
@@ -1975,7 +1903,7 @@ public class Junction {
     protected boolean containsContact(int id) {
         boolean contains = false;
         
-        if (contactMap.containsKey(id)) {
+        if (contactTable.contains(id)) {
             contains = true;
         }
         
@@ -1992,13 +1920,51 @@ public class Junction {
     }
     
     /**
-     * Returns the specified Contact if it is contained within this Junction.
+     * Returns the Junction that holds the specified Contact, which is either this Junction or one of its subjunctions.
+     * 
+     * @param id the unique identifier for the Contact
+     * @return the Junction that holds the Contact or null if the Contact is not contained in this Junction
+     */
+    protected Junction getOwner(int id) {
+        if (contactTable.contains(id)) {
+            return this;
+        }
+        
+        for (Junction j : junctionList) {
+            Junction owner = j.getOwner(id);
+            
+            if (owner != null) {
+                return owner;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the top-level Junction that contains this Junction, or this Junction if it is not a subjunction.
+     * 
+     * @return the top-level Junction
+     */
+    protected Junction getRoot() {
+        Junction root = this;
+        
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Returns a copy of the specified Contact if it is contained within this Junction.
      * 
      * @param id the unique identifier for the Contact
-     * @return the Contact specified or null if that Contact is not contained in this Junction
+     * @return a copy of the Contact specified or null if that Contact is not contained in this Junction
      */
     protected Contact getContact(int id) {
-        return contactMap.get(id);
+        // Contacts are pooled, so only copies leave the table
+        return contactTable.copy(id);
     }
     
     /**
@@ -2007,23 +1973,29 @@ public class Junction {
      * @return the Contact count
      */
     public int getContactCount() {
-        return (contactMap.size());
+        return contactTable.size();
     }
     
     /**
-     * Returns a list that is a copy of the current contact map values.
+     * Returns an array of copies of the current Contacts in the order that they were added.
      * 
      * @return a Contact list or an empty list of no Contacts are contained in this Junction
      */
     public Contact[] getContacts() {
         // Create new Contacts to avoid giving handles to Contacts that may be in use
-        ArrayList<Contact> contactList = new ArrayList<Contact>();
-        
-        for (Contact c : contactMap.values()) {
-            contactList.add(new Contact(c.getID(), c.getX(), c.getY()));
-        }
-        
-        return contactList.toArray(new Contact[contactList.size()]);
+        return contactTable.copies();
+    }
+    
+    /**
+     * Copies the current Contacts into the specified array in the order that they were added. Contacts already in the array are
+     * overwritten and new Contacts are only created for null elements, so a caller that keeps the same array between frames
+     * does not create garbage. Compare the returned count with {@link #getContactCount()} to tell whether the array was too small.
+     * 
+     * @param into the array to fill
+     * @return the number of Contacts copied into the array
+     */
+    public int getContacts(Contact[] into) {
+        return contactTable.copyInto(into);
     }
     
     /**
@@ -2068,88 +2040,21 @@ public class Junction {
      * @param action the Action to be associated with the message
      * @param message the message to send for the specified Action
      */
-    public void mapMessage(Action action, String message) {
+    public synchronized void mapMessage(Action action, String message) {
         if (targetRelay != null) {
             // First add the new message to the Relay
-            targetRelay.addMessage(message);
+            targetRelay.retainMessage(message);
             
-            // Now add the message to the appropriate list
-            switch (action) {
-                case ACTIVATE:
-                    relayActive = true;
-                    activeList.add(message);
-                    break;
-                case TOGGLE:
-                    relayToggle = true;
-                    toggleList.add(message);
-                    break;
-                case ROTATE:
-                    relayRotate = true;
-                    rotateList.add(message);
-                    break;
-                case ROTATE_1:
-                    relayRotate1 = true;
-                    rotate1List.add(message);
-                    break;
-                case ROTATE_2:
-                    relayRotate2 = true;
-                    rotate2List.add(message);
-                    break;
-                case SCALE:
-                    relayScale = true;
-                    scaleList.add(message);
-                    break;
-                case SCALE_WIDTH:
-                    relayScaleWidth = true;
-                    scaleWidthList.add(message);
-                    break;
-                case SCALE_HEIGHT:
-                    relayScaleHeight = true;
-                    scaleHeightList.add(message);
-                    break;
-                case TRANSLATE:
-                    relayTranslateXY = true;
-                    translateXYList.add(message);
-                    break;
-                case TRANSLATE_X:
-                    relayTranslateX = true;
-                    translateXList.add(message);
-                    break;
-                case TRANSLATE_Y:
-                    relayTranslateY = true;
-                    translateYList.add(message);
-                    break;
-                case CONTACT:
-                    relayContact = true;
-                    contactList.add(message);
-                    break;
-                case CONTACT_X:
-                    relayContactX = true;
-                    contactXList.add(message);
-                    break;
-                case CONTACT_Y:
-                    relayContactY = true;
-                    contactYList.add(message);
-                    break;
-                case CONTACT_R:
-                    relayContactR = true;
-                    contactRList.add(message);
-                    break;
-                case CONTACT_THETA:
-                    relayContactTheta = true;
-                    contactThetaList.add(message);
-                    break;
-                case COUNT_CONTACTS:
-                    relayContactCount = true;
-                    contactCountList.add(message);
-                    break;
-                case COUNT_ROTATIONS:
-                    relayRotationCount = true;
-                    rotationCountList.add(message);
-                    break;
-                default:
-                    break;
-            }
+            // Now publish a copy of the list for the Action with the new message
+            int i = action.ordinal();
+            Encoder[] old = encoderTable[i];
+            Encoder[] encoders = Arrays.copyOf(old, old.length + 1);
+            encoders[old.length] = targetRelay.getEncoder(message);
+            
+            Encoder[][] table = encoderTable.clone();
+            table[i] = encoders;
+            encoderTable = table;
+            relayMask |= 1 << i;
         }
     }
     
@@ -2159,71 +2064,57 @@ public class Junction {
      * @param action the Action to unmap
      * @param message the message to unmap
      */
-    public void unmapMessage(Action action, String message) {
+    public synchronized void unmapMessage(Action action, String message) {
         if (targetRelay != null) {
-            targetRelay.removeMessage(message);
+            int i = action.ordinal();
+            Encoder[] old = encoderTable[i];
             
-            switch (action) {
-                case ACTIVATE:
-                    activeList.remove(message);
-                    break;
-                case TOGGLE:
-                    toggleList.remove(message);
-                    break;
-                case ROTATE:
-                    rotateList.remove(message);
-                    break;
-                case ROTATE_1:
-                    rotate1List.remove(message);
-                    break;
-                case ROTATE_2:
-                    rotate2List.remove(message);
-                    break;
-                case SCALE:
-                    scaleList.remove(message);
-                    break;
-                case SCALE_WIDTH:
-                    scaleWidthList.remove(message);
-                    break;
-                case SCALE_HEIGHT:
-                    scaleHeightList.remove(message);
-                    break;
-                case TRANSLATE:
-                    translateXYList.remove(message);
-                    break;
-                case TRANSLATE_X:
-                    translateXList.remove(message);
-                    break;
-                case TRANSLATE_Y:
-                    translateYList.remove(message);
-                    break;
-                case CONTACT:
-                    contactList.remove(message);
-                    break;
-                case CONTACT_X:
-                    contactXList.remove(message);
-                    break;
-                case CONTACT_Y:
-                    contactYList.remove(message);
-                    break;
-                case CONTACT_R:
-                    contactRList.remove(message);
-                    break;
-                case CONTACT_THETA:
-                    contactThetaList.remove(message);
-                    break;
-                case COUNT_CONTACTS:
-                    contactCountList.remove(message);
-                    break;
-                case COUNT_ROTATIONS:
-                    rotationCountList.remove(message);
-                    break;
-                default:
+            for (int j = 0; j < old.length; j++) {
+                if (old[j].getAddress().equals(message)) {
+                    // Other Junctions may share the Relay, so it only drops the message once none of them map it
+                    targetRelay.releaseMessage(message);
+                    
+                    Encoder[] encoders = NO_ENCODERS;
+                    
+                    if (old.length > 1) {
+                        encoders = new Encoder[old.length - 1];
+                        System.arraycopy(old, 0, encoders, 0, j);
+                        System.arraycopy(old, j + 1, encoders, j, old.length - j - 1);
+                    }
+                    
+                    Encoder[][] table = encoderTable.clone();
+                    table[i] = encoders;
+                    encoderTable = table;
+                    
+                    if (encoders.length == 0) {
+                        relayMask &= ~(1 << i);
+                    }
                     break;
+                }
             }
         }
     }
     
+    /**
+     * Returns true if at least one message is mapped to the specified Action.
+     * 
+     * @param action the Action to test
+     * @return true if messages are sent for the Action
+     */
+    private boolean relays(Action action) {
+        return (relayMask & (1 << action.ordinal())) != 0;
+    }
+    
+    /**
+     * Returns the Encoders for the messages mapped to the specified Action. The returned array must not be changed.
+     * 
+     * @param action the Action
+     * @return the Encoders for the Action
+     */
+    private Encoder[] encoders(Action action) {
+        return encoderTable[action.ordinal()];
+    }
+    
     /**
      * Returns true if the given x,y point is inside the current bounds of this Junction. Tests for insideness are determined by the
      * shape set for this Junction.
@@ -2240,86 +2131,43 @@ public class Junction {
             for (Junction j : junctionList) {
                 if (j.inside(x, y)) {
                     inside = true;
+                    break;
                 }
             }
         }
         
-        if (!inside) {
+        // Nothing outside of the bounding box can be inside the shape
+        if (!inside && x >= minX && x <= maxX && y >= minY && y <= maxY) {
+            /*
+             *  Check for insideness when a Junction is rotated by moving touch points by the angle of rotation
+             *  
+             *  Matrix multiplication where x'y' is point to test
+             *  x' = x*cos(angle) - y*sin(angle)
+             *  y' = x*sin(angle) + y*cos(angle)
+             *  
+             */
+            float dx = x - centerX;
+            float dy = y - centerY;
+            float rotX = dx*cosAngle - dy*sinAngle;
+            float rotY = dx*sinAngle + dy*cosAngle;
+            
             switch (shape) {
                 case ELLIPSE:
-                    // Circle
                     if (width == height) {
-                        if (dist(x, y, centerX, centerY) < width/2) {
-                            inside = true;
-                        }
+                        // Circle
+                        inside = dx*dx + dy*dy < halfWidth*halfWidth;
                     }
                     else {
-                        if (angle == 0) {
-                            /* x,y is point and x0,y0 is center of ellipse
-                             * d = (x-x0/width)^2 + (y-y0/height)^2
-                             * if d <= 1 then x,y is inside
-                             */
-                            double d = Math.pow((x - centerX)/(width/2), 2) + Math.pow((y - centerY)/(height/2), 2);
-                            
-                            if (d <= 1) {
-                                inside = true;
-                            }
-                        }
-                        else {
-                            // Rotated
-                            float cosAngle = (float)Math.cos(0.0f - angle);
-                            float sinAngle = (float)Math.sin(0.0f - angle);
-                            float rotX;
-                            float rotY;
-                            
-                            // Rotate the point in order to check for insideness
-                            rotX = (x-centerX)*cosAngle - (y-centerY)*sinAngle;
-                            rotY = (x-centerX)*sinAngle + (y-centerY)*cosAngle;
-                            
-                            // Translate the center to 0,0 for testing
-                            double d = Math.pow(rotX/(width/2), 2) + Math.pow(rotY/(height/2), 2);
-                            
-                            if (d <= 1) {
-                                inside = true;
-                            }
-                        }
+                        /* x',y' is the rotated point relative to the center of the ellipse
+                         * d = (x'/(width/2))^2 + (y'/(height/2))^2
+                         * if d <= 1 then x,y is inside
+                         */
+                        inside = rotX*rotX*ellipseX + rotY*rotY*ellipseY <= 1;
                     }
                     break;
                 case RECT:
-                    /*
-                     *  Check for insideness when a rectangle is rotated by moving touch points by the angle of rotation
-                     *  
-                     *  Matrix multiplication where x'y' is point to test
-                     *  x' = x*cos(angle) - y*sin(angle)
-                     *  y' = x*sin(angle) + y*cos(angle)
-                     *  
-                     */
-                    if (angle == 0) {
-                        // NOT rotated
-                        if (x > centerX - width/2 && x < centerX + width/2) {
-                            if (y > centerY - height/2 && y < centerY + height/2) {
-                                inside = true;
-                            }
-                        }
-                    }
-                    else {
-                        // Rotated
-                        float cosAngle = (float)Math.cos(0.0f - angle);
-                        float sinAngle = (float)Math.sin(0.0f - angle);
-                        float rotX;
-                        float rotY;
-                        
-                        // Rotate the point in order to check for insideness
-                        rotX = (x-centerX)*cosAngle - (y-centerY)*sinAngle;
-                        rotY = (x-centerX)*sinAngle + (y-centerY)*cosAngle;
-                        
-                        // Translate the center of the rectangle to 0,0 for testing
-                        if (rotX > (0 - width/2) && rotX < width/2) {
-                            if (rotY > (0 - height/2) && rotY < height/2) {
-                                inside = true;
-                            }
-                        }
-                    }
+                    // Translate the center of the rectangle to 0,0 for testing
+                    inside = rotX > -halfWidth && rotX < halfWidth && rotY > -halfHeight && rotY < halfHeight;
                     break;
                 default:
                     break;
@@ -2329,6 +2177,63 @@ public class Junction {
         return inside;
     }
     
+    /**
+     * Recomputes the cached rotation terms, half extents and bounding box after the center, size or angle has changed. The
+     * rotation terms are only recomputed when the angle has changed.
+     */
+    private void updateGeometry() {
+        if (angle != cachedAngle) {
+            cosAngle = (float)Math.cos(0.0f - angle);
+            sinAngle = (float)Math.sin(0.0f - angle);
+            cachedAngle = angle;
+        }
+        
+        halfWidth = width/2;
+        halfHeight = height/2;
+        ellipseX = 1/(halfWidth*halfWidth);
+        ellipseY = 1/(halfHeight*halfHeight);
+        
+        // The rotated rectangle also contains an ellipse of the same size
+        float extentX = halfWidth*Math.abs(cosAngle) + halfHeight*Math.abs(sinAngle);
+        float extentY = halfWidth*Math.abs(sinAngle) + halfHeight*Math.abs(cosAngle);
+        minX = centerX - extentX;
+        minY = centerY - extentY;
+        maxX = centerX + extentX;
+        maxY = centerY + extentY;
+        
+        invalidateBounds();
+    }
+    
+    /**
+     * Expands the bounding box at the specified offset to include this Junction and its subjunctions. The box is stored as min x,
+     * min y, max x and max y and always contains the rotated rectangle of the Junction, which also contains an ellipse of the same size.
+     * 
+     * @param b the array holding the bounding box
+     * @param offset the offset of the bounding box in the array
+     */
+    void includeBounds(float[] b, int offset) {
+        b[offset] = Math.min(b[offset], minX);
+        b[offset+1] = Math.min(b[offset+1], minY);
+        b[offset+2] = Math.max(b[offset+2], maxX);
+        b[offset+3] = Math.max(b[offset+3], maxY);
+        
+        for (Junction j : junctionList) {
+            j.includeBounds(b, offset);
+        }
+    }
+    
+    /**
+     * Tells the spatial index that holds the top-level Junction above this one that the bounds have changed.
+     */
+    private void invalidateBounds() {
+        Junction root = getRoot();
+        SpatialIndex i = root.index;
+        
+        if (i != null) {
+            i.invalidate(root);
+        }
+    }
+    
     /**
      * Returns true if this Junction has any Contacts.
      * 
@@ -2337,7 +2242,7 @@ public class Junction {
     public boolean isActive() {
         boolean active = false;
         
-        if (contactMap.size() > 0) {
+        if (contactTable.size() > 0) {
             active = true;
         }
         
@@ -2348,14 +2253,12 @@ public class Junction {
      * Sends the current Contact count for this Junction.
      */
     private void relayContactCount() {
-        int contactCount = contactMap.size();
+        int contactCount = contactTable.size();
         
         if (contactCount != lastContactCount) {
             if (targetRelay != null) {
-                for (String s : contactCountList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addInteger(s, contactCount);
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.COUNT_CONTACTS)) {
+                    targetRelay.sendEvent(e, contactCount);
                 }
             }
             
@@ -2369,10 +2272,8 @@ public class Junction {
     private void relayRotationCount() {
         if (rotationCount != lastRotationCount) {
             if (targetRelay != null) {
-                for (String s : rotationCountList) {
-                    targetRelay.resetMessage(s);
-                    targetRelay.addInteger(s, rotationCount);
-                    targetRelay.send(s);
+                for (Encoder e : encoders(Action.COUNT_ROTATIONS)) {
+                    targetRelay.sendEvent(e, rotationCount);
                 }
             }
             
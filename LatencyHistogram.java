@@ -0,0 +1,118 @@
+package junctionbox;
+
+/**
+ * The LatencyHistogram class counts nanosecond latencies in buckets so that percentiles can be reported without keeping every
+ * sample. Each power of two is split into sixteen linear buckets, so a reported value is never more than about six percent above
+ * the true value, and recording a sample never allocates.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class LatencyHistogram {
+    /**
+     * The number of bits used for the linear buckets within each power of two.
+     */
+    private static final int SUB_BITS = 4;
+    
+    /**
+     * The number of linear buckets within each power of two.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    
+    /**
+     * The count of samples in each bucket.
+     */
+    private final long[] counts = new long[(64 - SUB_BITS + 1)*SUB_COUNT];
+    
+    /**
+     * The total number of samples.
+     */
+    private long total = 0;
+    
+    /**
+     * The largest sample.
+     */
+    private long max = 0;
+    
+    /**
+     * Records a latency. Negative latencies are counted as 0.
+     * 
+     * @param nanos the latency in nanoseconds
+     */
+    synchronized void record(long nanos) {
+        long v = Math.max(nanos, 0);
+        counts[index(v)]++;
+        total++;
+        max = Math.max(max, v);
+    }
+    
+    /**
+     * Removes all samples.
+     */
+    synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        
+        total = 0;
+        max = 0;
+    }
+    
+    /**
+     * Returns the latency that the specified percentage of samples do not exceed.
+     * 
+     * @param percentile the percentile from 0 to 100
+     * @return the latency in nanoseconds or 0 if there are no samples
+     */
+    synchronized long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        
+        long rank = (long)Math.ceil(total*Math.min(Math.max(percentile, 0), 100)/100);
+        long seen = 0;
+        
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        
+        return max;
+    }
+    
+    /**
+     * Returns the bucket for the specified value.
+     * 
+     * @param v the non-negative value
+     * @return the bucket index
+     */
+    private static int index(long v) {
+        if (v < SUB_COUNT) {
+            return (int)v;
+        }
+        
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        
+        return (shift + 1)*SUB_COUNT + (int)((v >>> shift) & (SUB_COUNT - 1));
+    }
+    
+    /**
+     * Returns the largest value that falls into the specified bucket.
+     * 
+     * @param i the bucket index
+     * @return the largest value in the bucket
+     */
+    private static long upperBound(int i) {
+        if (i < SUB_COUNT) {
+            return i;
+        }
+        
+        int shift = i/SUB_COUNT - 1;
+        long base = (long)(SUB_COUNT + i%SUB_COUNT) << shift;
+        
+        return base + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,77 @@
+package junctionbox;
+
+/**
+ * The NDEFHandler class handles the messages that a {@link Nexus} receives at one NDEF address. Every NDEF message starts with
+ * the IP address and port of its sender, and each handler declares the types of the arguments that follow, so a message is
+ * checked once before it is handled and the handler can cast its arguments directly. A message that does not match is added to
+ * the rejected messages of the Nexus instead. Applications can handle their own NDEF addresses, or replace the handling of a
+ * standard address, with {@link Nexus#setHandler(String, NDEFHandler)}.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+public abstract class NDEFHandler {
+    /**
+     * The types of the arguments after the IP address and port.
+     */
+    private final Class<?>[] types;
+    
+    /**
+     * The number of arguments after the IP address and port that must be present.
+     */
+    private final int required;
+    
+    /**
+     * Constructs a new NDEFHandler for messages that have exactly the specified arguments after the IP address and port.
+     * 
+     * @param types the argument types
+     */
+    public NDEFHandler(Class<?>... types) {
+        this(types.length, types);
+    }
+    
+    /**
+     * Constructs a new NDEFHandler for messages that have the specified arguments after the IP address and port, of which only
+     * the first ones must be present.
+     * 
+     * @param required the number of arguments that must be present
+     * @param types the argument types
+     */
+    public NDEFHandler(int required, Class<?>... types) {
+        this.types = types.clone();
+        this.required = Math.max(Math.min(required, types.length), 0);
+    }
+    
+    /**
+     * Returns true if the arguments of a message after the IP address and port match the types of this handler.
+     * 
+     * @param args all arguments of the message
+     * @return true if the message can be handled, false otherwise
+     */
+    final boolean accepts(Object[] args) {
+        int extra = args.length - 2;
+        
+        if (extra < required || extra > types.length) {
+            return false;
+        }
+        
+        for (int i = 0; i < extra; i++) {
+            if (!types[i].isInstance(args[i + 2])) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Handles a message whose arguments match the types of this handler.
+     * 
+     * @param nexus the Nexus that received the message
+     * @param relay the Relay for the sender or null if the sender is not connected
+     * @param ip the IP address of the sender
+     * @param port the port number of the sender
+     * @param args all arguments of the message, starting with the IP address and port
+     */
+    protected abstract void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args);
+}
@@ -3,29 +3,31 @@ package junctionbox;
 import com.illposed.osc.OSCListener;
 import com.illposed.osc.OSCMessage;
 import com.illposed.osc.OSCPortIn;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import javax.xml.parsers.DocumentBuilder; 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource; 
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * The Nexus class implements the NDEF (Nexus Data Exchange Format) specification for managing connections and sharing
@@ -52,9 +54,15 @@ public class Nexus implements OSCListener {
     private CopyOnWriteArrayList<Relay> relayList;
     
     /**
-     * The IP address for incoming OSC messages.
+     * The Relays in the list whose IP address is an IPv4 address, by their socket packed into a long. An entry for a Relay that has
+     * since been moved to another socket is dropped when it is next looked up.
      */
-    private String listenAddress;
+    private ConcurrentHashMap<Long,Relay> relayMap;
+    
+    /**
+     * The IP address for incoming OSC messages, or null before this Nexus first listens.
+     */
+    private volatile String listenAddress;
     
     /**
      * The port for incoming OSC messages.
@@ -132,53 +140,51 @@ public class Nexus implements OSCListener {
     private static final String NDEF_MESSAGE_REPLACE = "/ndef/message/replace";
     
     /**
-     * List of rejected NDEF messages as Strings.
+     * The socket that NDEF messages are sent from, shared by all targets, or null if nothing has been sent.
      */
-    private ArrayList<String> rejectedList;
+    private DatagramChannel controlChannel;
+    
+    /**
+     * The resolved sockets of NDEF targets with an IPv4 address, by their socket packed into a long.
+     */
+    private ConcurrentHashMap<Long,InetSocketAddress> controlTargets;
     
     /**
-     * Builder for XML documents.
+     * The handlers for incoming NDEF messages by OSC address.
      */
-    private DocumentBuilder builder;
+    private ConcurrentHashMap<String,NDEFHandler> handlerMap;
     
     /**
-     * The XML document to write.
+     * The addresses that the OSCPortIn listener has been given.
      */
-    private Document writeDoc;
+    private HashSet<String> listenedAddresses;
     
     /**
-     * The root of the XML document to write.
+     * List of rejected NDEF messages as Strings.
      */
-    private Element writeRoot;
+    private ArrayList<String> rejectedList;
     
     /**
-     * The XML document to read.
+     * The thread that pings every Relay periodically, or null if the heartbeat is off.
      */
-    private Document readDoc;
+    private ScheduledExecutorService heartbeat;
     
     /**
-     * The root of the XML document to read.
+     * The periodic save or null if autosaving is off.
      */
-    private Element readRoot;
+    private volatile Autosave autosave;
     
     /**
      * A Nexus handles connection and message management with remote (or local) network nodes.
      */
     public Nexus() {
         relayList = new CopyOnWriteArrayList<Relay>();
+        relayMap = new ConcurrentHashMap<Long,Relay>();
+        controlTargets = new ConcurrentHashMap<Long,InetSocketAddress>();
         rejectedList = new ArrayList<String>();
-        
-        // Set up XML input/output
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            builder = factory.newDocumentBuilder();
-            writeDoc = builder.newDocument();
-            writeRoot = writeDoc.createElement("junctionbox");
-            writeDoc.appendChild(writeRoot);
-        }
-        catch (ParserConfigurationException e) {
-            // Do nothing
-        }
+        handlerMap = new ConcurrentHashMap<String,NDEFHandler>();
+        listenedAddresses = new HashSet<String>();
+        addDefaultHandlers();
     }
     
     /**
@@ -193,19 +199,12 @@ public class Nexus implements OSCListener {
         defaultPort = port;
         
         relayList = new CopyOnWriteArrayList<Relay>();
+        relayMap = new ConcurrentHashMap<Long,Relay>();
+        controlTargets = new ConcurrentHashMap<Long,InetSocketAddress>();
         rejectedList = new ArrayList<String>();
-        
-        // Set up XML input/output
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            builder = factory.newDocumentBuilder();
-            writeDoc = builder.newDocument();
-            writeRoot = writeDoc.createElement("junctionbox");
-            writeDoc.appendChild(writeRoot);
-        }
-        catch (ParserConfigurationException e) {
-            // Do nothing
-        }
+        handlerMap = new ConcurrentHashMap<String,NDEFHandler>();
+        listenedAddresses = new HashSet<String>();
+        addDefaultHandlers();
     }
     
     /**
@@ -261,17 +260,17 @@ public class Nexus implements OSCListener {
         
         try {
             oscIn = new OSCPortIn(listenPort);
-            oscIn.addListener(NDEF_CONNECTION_ACCEPT, this);
-            oscIn.addListener(NDEF_CONNECTION_LABEL, this);
-            oscIn.addListener(NDEF_CONNECTION_MARK, this);
-            oscIn.addListener(NDEF_CONNECTION_PING, this);
-            oscIn.addListener(NDEF_CONNECTION_ECHO, this);
-            oscIn.addListener(NDEF_MESSAGE_REPLY, this);
-            oscIn.addListener(NDEF_MESSAGE_COUNT, this);
-            oscIn.addListener(NDEF_MESSAGE_TALLY, this);
-            oscIn.addListener(NDEF_MESSAGE_ADD, this);
-            oscIn.addListener(NDEF_MESSAGE_REMOVE, this);
-            oscIn.addListener(NDEF_MESSAGE_REPLACE, this);
+            
+            // Listen at every address that has a handler
+            synchronized (this) {
+                listenedAddresses.clear();
+                
+                for (String a : handlerMap.keySet()) {
+                    listenedAddresses.add(a);
+                    oscIn.addListener(a, this);
+                }
+            }
+            
             oscIn.startListening();
         }
         catch (SocketException e) {
@@ -314,14 +313,7 @@ public class Nexus implements OSCListener {
      * @param port the port number
      */
     public void sendConnectionRequest(String ip, int port) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_CONNECTION_REQUEST);
-        
-        // Address of requester (this Dispatcher instance)
-        r.addString(NDEF_CONNECTION_REQUEST, listenAddress);
-        r.addInteger(NDEF_CONNECTION_REQUEST, listenPort);
-        
-        r.send(NDEF_CONNECTION_REQUEST);
+        sendControl(ip, port, controlMessage(NDEF_CONNECTION_REQUEST));
     }
     
     /**
@@ -332,15 +324,10 @@ public class Nexus implements OSCListener {
      * @param label the label
      */
     public void sendConnectionRequest(String ip, int port, String label) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_CONNECTION_REQUEST);
-        
-        // Address of requester (this Dispatcher instance)
-        r.addString(NDEF_CONNECTION_REQUEST, listenAddress);
-        r.addInteger(NDEF_CONNECTION_REQUEST, listenPort);
-        r.addString(NDEF_CONNECTION_REQUEST, label);
+        OSCMessage m = controlMessage(NDEF_CONNECTION_REQUEST);
+        m.addArgument(label);
         
-        r.send(NDEF_CONNECTION_REQUEST);
+        sendControl(ip, port, m);
     }
     
     /**
@@ -367,13 +354,7 @@ public class Nexus implements OSCListener {
      * @return true if connected, false otherwise
      */
     public boolean isConnected(String ip, int port) {
-        for (Relay r : relayList) {
-            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                return true;
-            }
-        }
-        
-        return false;
+        return findRelay(ip, port) != null;
     }
     
     /**
@@ -383,11 +364,13 @@ public class Nexus implements OSCListener {
      * @return true if connected, false otherwise
      */
     public boolean isConnected(Relay r) {
-        if (relayList.contains(r)) {
+        long key = socketKey(r.getIPAddress(), r.getPort());
+        
+        if (key >= 0 && relayMap.get(key) == r) {
             return true;
         }
         else {
-            return false;
+            return relayList.contains(r);
         }
     }
     
@@ -398,14 +381,10 @@ public class Nexus implements OSCListener {
      * @param port the port number
      */
     public void sendConnectionLabel(String ip, int port, String label) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_CONNECTION_LABEL);
-        
-        r.addString(NDEF_CONNECTION_LABEL, listenAddress);
-        r.addInteger(NDEF_CONNECTION_LABEL, listenPort);
-        r.addString(label);
+        OSCMessage m = controlMessage(NDEF_CONNECTION_LABEL);
+        m.addArgument(label);
         
-        r.send(NDEF_CONNECTION_LABEL);
+        sendControl(ip, port, m);
     }
     
     /**
@@ -422,19 +401,13 @@ public class Nexus implements OSCListener {
      * @param port the port number
      */
     public void sendConnectionPing(String ip, int port) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_CONNECTION_PING);
-        
-        r.addString(NDEF_CONNECTION_PING, listenAddress);
-        r.addInteger(NDEF_CONNECTION_PING, listenPort);
-        
-        r.send(NDEF_CONNECTION_PING);
+        sendControl(ip, port, controlMessage(NDEF_CONNECTION_PING));
         
         // Look for local Relay and set remote echo status until echo message received
-        for (Relay local : relayList) {
-            if (local.getIPAddress().equals(ip) && local.getPort() == port) {
-                local.setRemoteEcho(false);
-            }
+        Relay local = findRelay(ip, port);
+        
+        if (local != null) {
+            local.pingSent(System.nanoTime());
         }
     }
     
@@ -452,13 +425,7 @@ public class Nexus implements OSCListener {
      * @param port the port number
      */
     public void sendConnectionEcho(String ip, int port) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_CONNECTION_ECHO);
-        
-        r.addString(NDEF_CONNECTION_ECHO, listenAddress);
-        r.addInteger(NDEF_CONNECTION_ECHO, listenPort);
-        
-        r.send(NDEF_CONNECTION_ECHO);
+        sendControl(ip, port, controlMessage(NDEF_CONNECTION_ECHO));
     }
     
     /**
@@ -475,14 +442,7 @@ public class Nexus implements OSCListener {
      * @param port the target port
      */
     public void sendMessageRequest(String ip, int port) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_MESSAGE_REQUEST);
-        
-        // Socket of requester (this Dispatcher instance)
-        r.addString(NDEF_MESSAGE_REQUEST, listenAddress);
-        r.addInteger(NDEF_MESSAGE_REQUEST, listenPort);
-        
-        r.send(NDEF_MESSAGE_REQUEST);
+        sendControl(ip, port, controlMessage(NDEF_MESSAGE_REQUEST));
     }
     
     /**
@@ -499,13 +459,7 @@ public class Nexus implements OSCListener {
      * @param port the port number
      */
     public void sendMessageCount(String ip, int port) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_MESSAGE_COUNT);
-        
-        r.addString(NDEF_MESSAGE_COUNT, listenAddress);
-        r.addInteger(NDEF_MESSAGE_COUNT, listenPort);
-        
-        r.send(NDEF_MESSAGE_COUNT);
+        sendControl(ip, port, controlMessage(NDEF_MESSAGE_COUNT));
     }
     
     /**
@@ -523,15 +477,10 @@ public class Nexus implements OSCListener {
      * @param message the message to add
      */
     public void sendMessageAdd(String ip, int port, String message) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_MESSAGE_ADD);
-        
-        // Socket of requester (this Dispatcher instance)
-        r.addString(NDEF_MESSAGE_ADD, listenAddress);
-        r.addInteger(NDEF_MESSAGE_ADD, listenPort);
-        r.addString(message);
+        OSCMessage m = controlMessage(NDEF_MESSAGE_ADD);
+        m.addArgument(message);
         
-        r.send(NDEF_MESSAGE_ADD);
+        sendControl(ip, port, m);
     }
     
     /**
@@ -551,15 +500,10 @@ public class Nexus implements OSCListener {
      * @param message the message to remove
      */
     public void sendMessageRemove(String ip, int port, String message) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_MESSAGE_REMOVE);
+        OSCMessage m = controlMessage(NDEF_MESSAGE_REMOVE);
+        m.addArgument(message);
         
-        // Socket of requester (this Dispatcher instance)
-        r.addString(NDEF_MESSAGE_REMOVE, listenAddress);
-        r.addInteger(NDEF_MESSAGE_REMOVE, listenPort);
-        r.addString(message);
-        
-        r.send(NDEF_MESSAGE_REMOVE);
+        sendControl(ip, port, m);
     }
     
     /**
@@ -580,16 +524,11 @@ public class Nexus implements OSCListener {
      * @param newMessage the new message
      */
     public void sendMessageReplace(String ip, int port, String oldMessage, String newMessage) {
-        Relay r = new Relay(ip, port);
-        r.addMessage(NDEF_MESSAGE_REPLACE);
-        
-        // Socket of requester (this Dispatcher instance)
-        r.addString(NDEF_MESSAGE_REPLACE, listenAddress);
-        r.addInteger(NDEF_MESSAGE_REPLACE, listenPort);
-        r.addString(oldMessage);
-        r.addString(newMessage);
+        OSCMessage m = controlMessage(NDEF_MESSAGE_REPLACE);
+        m.addArgument(oldMessage);
+        m.addArgument(newMessage);
         
-        r.send(NDEF_MESSAGE_REPLACE);
+        sendControl(ip, port, m);
     }
     
     /**
@@ -603,7 +542,9 @@ public class Nexus implements OSCListener {
     }
     
     /**
-     * Accepts certain OSC messages. Messages currently accepted are Nexus Data Exchange Format (NDEF).
+     * Accepts certain OSC messages. Messages currently accepted are Nexus Data Exchange Format (NDEF) messages at an address
+     * that has a handler. The IP address and port of the sender are checked here and the rest of the arguments are checked by
+     * the handler.
      * 
      * @param time the time associated with the message
      * @param message the OSC message
@@ -611,268 +552,26 @@ public class Nexus implements OSCListener {
     public void acceptMessage(Date time, OSCMessage message) {
         String address = message.getAddress();
         Object[] args = message.getArguments();
-        boolean rejected = false;
-        String ip = "";
-        int port = 0;
         
         // No address = no message!
-        if (address != null && address.length() > 0) {
-            // There must be at least two arguments, IP address and port with optional message String
-            if (args.length >= 2) {
-                // Beware the casting!
-                try {
-                    // This should be the target socket
-                    ip = (String)args[0];
-                    port = (Integer)args[1];
-                }
-                catch (ClassCastException e) {
-                    rejected = true;
-                }
-                
-                if (!rejected) {
-                    // The NDEF connection is accepted
-                    if (address.equals(NDEF_CONNECTION_ACCEPT)) {
-                        boolean found = false;
-                        String label = "";
-                        
-                        // Look for optional label String
-                        if (args.length == 3) {
-                            try {
-                                label = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                        }
-                        
-                        for (Relay r : relayList) {
-                            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                found = true;
-                                r.setLabel(label);
-                                break;
-                            }
-                        }
-                        
-                        // Only create a new Relay if the socket does not match
-                        if (!found) {
-                            Relay r = new Relay(ip, port);
-                            r.setLabel(label);
-                            relayList.add(r);
-                        }
-                    }
-                    else if (address.equals(NDEF_CONNECTION_LABEL)) {
-                        // The label is always the third argument
-                        if (args.length == 3) {
-                            String label = "";
-                            
-                            try {
-                                label = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        r.setLabel(label);
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            rejected = true;
-                        }
-                    }
-                    else if (address.equals(NDEF_CONNECTION_MARK)) {
-                        // Look for optional third label argument
-                        if (args.length == 3) {
-                            String label = "";
-                            
-                            try {
-                                label = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        // Set the remote label rather than the local label
-                                        r.setRemoteLabel(label);
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    else if (address.equals(NDEF_CONNECTION_PING)) {
-                        for (Relay r : relayList) {
-                            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                // Send echo back to sender
-                                sendConnectionEcho(ip, port);
-                            }
-                        }
-                    }
-                    else if (address.equals(NDEF_CONNECTION_ECHO)){
-                        for (Relay r : relayList) {
-                            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                // Mark Relay as still connected?
-                            }
-                        }
-                    }
-                    else if (address.equals(NDEF_MESSAGE_REPLY)) {
-                        // Message replies should have 3 arguments
-                        if (args.length == 3) {
-                            String m = "";
-                            try {
-                                // The message should be the 3rd argument
-                                m = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        // Only add new messages
-                                        if (!r.containsMessage(m)) {
-                                            r.addMessage(m);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            // No message String included?
-                            rejected = true;
-                        }
-                    }
-                    /*else if (address.equals(NDEF_MESSAGE_COUNT)) {
-                        for (Relay r : relayList) {
-                            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                // Send count of messages in local Relay???
-                            }
-                        }
-                    }*/
-                    else if (address.equals(NDEF_MESSAGE_TALLY)) {
-                        if (args.length == 3) {
-                            int tally = 0;
-                            try {
-                                // The message tally is the third argument
-                                tally = (int)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        r.setRemoteMessageCount(tally);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    else if (address.equals(NDEF_MESSAGE_ADD)) {
-                        // Add message to local list
-                        if (args.length == 3) {
-                            String m = "";
-                            try {
-                                // The message should be the 3rd argument
-                                m = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        // Do not add duplicate messages
-                                        if (!r.containsMessage(m)) {
-                                            r.addMessage(m);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            // No message String included?
-                            rejected = true;
-                        }
-                    }
-                    else if (address.equals(NDEF_MESSAGE_REMOVE)) {
-                        // Remove message from local list
-                        if (args.length == 3) {
-                            String m = "";
-                            try {
-                                // The message should be the 3rd argument
-                                m = (String)args[2];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        // Remove the message if it's there
-                                        if (r.containsMessage(m)) {
-                                            r.removeMessage(m);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            // No message String included?
-                            rejected = true;
-                        }
-                    }
-                    else if (address.equals(NDEF_MESSAGE_REPLACE)) {
-                        // Replace message in local list
-                        if (args.length == 4) {
-                            // m2 replaces m1
-                            String m1 = "";
-                            String m2 = "";
-                            try {
-                                // The messages should be the 3rd and 4th arguments
-                                m1 = (String)args[2];
-                                m2 = (String)args[3];
-                            }
-                            catch (ClassCastException e) {
-                                rejected = true;
-                            }
-                            
-                            if (!rejected) {
-                                for (Relay r : relayList) {
-                                    if (r.getIPAddress().equals(ip) && r.getPort() == port) {
-                                        if (r.containsMessage(m1)) {
-                                            r.replaceMessage(m1, m2);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        else {
-                            // No message String included?
-                            rejected = true;
-                        }
-                    }
-                }
-            }
-            else {
-                rejected = true;
-                // Not enough arguments
-            }
+        if (address == null || address.length() == 0) {
+            return;
         }
         
-        if (rejected) {
+        NDEFHandler handler = handlerMap.get(address);
+        
+        if (handler == null) {
+            return;
+        }
+        
+        // There must be at least two arguments, IP address and port, followed by the arguments of the handler
+        if (args.length >= 2 && args[0] instanceof String && args[1] instanceof Integer && handler.accepts(args)) {
+            String ip = (String)args[0];
+            int port = (Integer)args[1];
+            
+            handler.handle(this, findRelay(ip, port), ip, port, args);
+        }
+        else {
             // First add OSC address pattern
             StringBuffer buffer = new StringBuffer(address);
             
@@ -886,6 +585,342 @@ public class Nexus implements OSCListener {
         }
     }
     
+    /**
+     * Sets the handler for messages at the specified NDEF address, replacing any handler that the address already has. This is
+     * how applications add their own NDEF messages, and the standard messages can be handled differently in the same way. If
+     * this Nexus is listening, it starts listening at the address straight away.
+     * 
+     * @param address the OSC address
+     * @param handler the handler or null to ignore messages at the address
+     */
+    public synchronized void setHandler(String address, NDEFHandler handler) {
+        if (handler == null) {
+            handlerMap.remove(address);
+            return;
+        }
+        
+        handlerMap.put(address, handler);
+        
+        if (oscIn != null && listenedAddresses.add(address)) {
+            oscIn.addListener(address, this);
+        }
+    }
+    
+    /**
+     * Returns the handler for messages at the specified NDEF address.
+     * 
+     * @param address the OSC address
+     * @return the handler or null if messages at the address are ignored
+     */
+    public NDEFHandler getHandler(String address) {
+        return handlerMap.get(address);
+    }
+    
+    /**
+     * Sets the handlers for the standard NDEF messages that a Nexus receives.
+     */
+    private void addDefaultHandlers() {
+        // The optional third argument is the label
+        handlerMap.put(NDEF_CONNECTION_ACCEPT, new NDEFHandler(0, String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                String label = args.length == 3 ? (String)args[2] : "";
+                
+                if (relay != null) {
+                    relay.setLabel(label);
+                }
+                else {
+                    // Only create a new Relay if the socket does not match
+                    Relay r = new Relay(ip, port);
+                    r.setLabel(label);
+                    addRelay(r);
+                }
+            }
+        });
+        
+        // The label is always the third argument
+        handlerMap.put(NDEF_CONNECTION_LABEL, new NDEFHandler(String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                if (relay != null) {
+                    relay.setLabel((String)args[2]);
+                }
+            }
+        });
+        
+        // Look for optional third label argument
+        handlerMap.put(NDEF_CONNECTION_MARK, new NDEFHandler(0, String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                if (relay != null && args.length == 3) {
+                    // Set the remote label rather than the local label
+                    relay.setRemoteLabel((String)args[2]);
+                }
+            }
+        });
+        
+        handlerMap.put(NDEF_CONNECTION_PING, new NDEFHandler() {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                if (relay != null) {
+                    // Send echo back to sender
+                    sendConnectionEcho(ip, port);
+                }
+            }
+        });
+        
+        handlerMap.put(NDEF_CONNECTION_ECHO, new NDEFHandler() {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                if (relay != null) {
+                    // The Relay answered the last ping
+                    relay.echoReceived(System.nanoTime());
+                }
+            }
+        });
+        
+        // Message replies have the message as the third argument
+        handlerMap.put(NDEF_MESSAGE_REPLY, new NDEFHandler(String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                String m = (String)args[2];
+                
+                // Only add new messages
+                if (relay != null && !relay.containsMessage(m)) {
+                    relay.addMessage(m);
+                }
+            }
+        });
+        
+        // The message tally is the third argument
+        handlerMap.put(NDEF_MESSAGE_TALLY, new NDEFHandler(Integer.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                if (relay != null) {
+                    relay.setRemoteMessageCount((Integer)args[2]);
+                }
+            }
+        });
+        
+        // Add message to local list
+        handlerMap.put(NDEF_MESSAGE_ADD, new NDEFHandler(String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                String m = (String)args[2];
+                
+                // Do not add duplicate messages
+                if (relay != null && !relay.containsMessage(m)) {
+                    relay.addMessage(m);
+                }
+            }
+        });
+        
+        // Remove message from local list
+        handlerMap.put(NDEF_MESSAGE_REMOVE, new NDEFHandler(String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                String m = (String)args[2];
+                
+                // Remove the message if it's there
+                if (relay != null && relay.containsMessage(m)) {
+                    relay.removeMessage(m);
+                }
+            }
+        });
+        
+        // Replace message in local list, where the fourth argument replaces the third
+        handlerMap.put(NDEF_MESSAGE_REPLACE, new NDEFHandler(String.class, String.class) {
+            protected void handle(Nexus nexus, Relay relay, String ip, int port, Object[] args) {
+                String m1 = (String)args[2];
+                String m2 = (String)args[3];
+                
+                if (relay != null && relay.containsMessage(m1)) {
+                    relay.replaceMessage(m1, m2);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Returns the Relay with the specified socket. Relays with an IPv4 address are usually found in the map without comparing the
+     * address of every Relay. The list is searched when the map has no Relay for the socket, which covers Relays with another
+     * kind of address, Relays moved with {@link Relay#setSocket(String, int)} and Relays that share a socket, and the map is
+     * repaired with whatever the search finds.
+     * 
+     * @param ip the IP address
+     * @param port the port number
+     * @return the Relay or null if no Relay has the socket
+     */
+    private Relay findRelay(String ip, int port) {
+        long key = socketKey(ip, port);
+        
+        if (key >= 0) {
+            Relay r = relayMap.get(key);
+            
+            if (r != null) {
+                if (r.getPort() == port && ip.equals(r.getIPAddress())) {
+                    return r;
+                }
+                
+                // The Relay was moved to another socket after it was added
+                relayMap.remove(key, r);
+            }
+        }
+        
+        for (Relay r : relayList) {
+            if (r.getIPAddress().equals(ip) && r.getPort() == port) {
+                if (key >= 0) {
+                    relayMap.put(key, r);
+                }
+                
+                return r;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Adds a Relay to the list and to the map if its IP address is an IPv4 address. The first Relay added for a socket is the
+     * one that is found for it.
+     * 
+     * @param r the Relay
+     */
+    private void addRelay(Relay r) {
+        relayList.add(r);
+        
+        long key = socketKey(r.getIPAddress(), r.getPort());
+        
+        if (key >= 0) {
+            relayMap.putIfAbsent(key, r);
+        }
+    }
+    
+    /**
+     * Returns a new NDEF message that starts with the socket that this Nexus listens on, which is how the receiver knows who
+     * sent it.
+     * 
+     * @param address the NDEF address
+     * @return the message
+     */
+    private OSCMessage controlMessage(String address) {
+        OSCMessage m = new OSCMessage(address);
+        m.addArgument(listenAddress);
+        m.addArgument(listenPort);
+        
+        return m;
+    }
+    
+    /**
+     * Sends an NDEF message from the shared control socket. The socket is opened on the first message and each target is
+     * resolved once, so sending control messages to many nodes neither opens sockets nor looks up addresses.
+     * 
+     * @param ip the target IP address
+     * @param port the target port
+     * @param m the message
+     */
+    private void sendControl(String ip, int port, OSCMessage m) {
+        InetSocketAddress target = getControlTarget(ip, port);
+        DatagramChannel c = getControlChannel();
+        
+        if (target != null && c != null) {
+            try {
+                c.send(ByteBuffer.wrap(m.getByteArray()), target);
+            }
+            catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+    
+    /**
+     * Returns the resolved socket for an NDEF target. Targets with an IPv4 address are cached, and other targets are resolved
+     * each time.
+     * 
+     * @param ip the target IP address
+     * @param port the target port
+     * @return the socket or null if the address cannot be resolved
+     */
+    private InetSocketAddress getControlTarget(String ip, int port) {
+        long key = socketKey(ip, port);
+        InetSocketAddress target = key >= 0 ? controlTargets.get(key) : null;
+        
+        if (target == null) {
+            try {
+                target = new InetSocketAddress(InetAddress.getByName(ip), port);
+            }
+            catch (Exception e) {
+                return null;
+            }
+            
+            if (key >= 0) {
+                controlTargets.putIfAbsent(key, target);
+            }
+        }
+        
+        return target;
+    }
+    
+    /**
+     * Returns the socket that NDEF messages are sent from, opening it if needed.
+     * 
+     * @return the channel or null if it cannot be opened
+     */
+    private synchronized DatagramChannel getControlChannel() {
+        if (controlChannel == null) {
+            try {
+                controlChannel = DatagramChannel.open();
+            }
+            catch (IOException e) {
+                // Do nothing
+            }
+        }
+        
+        return controlChannel;
+    }
+    
+    /**
+     * Packs an IPv4 address and a port number into a long, without a lookup and without allocating. Only addresses written as
+     * four decimal numbers without leading zeros are packed, so that each address String has exactly one key.
+     * 
+     * @param ip the IP address
+     * @param port the port number
+     * @return the key or -1 if the address is not an IPv4 address or the port is out of range
+     */
+    static long socketKey(String ip, int port) {
+        if (ip == null || port < 0 || port > 0xFFFF) {
+            return -1;
+        }
+        
+        long address = 0;
+        int part = -1;
+        int dots = 0;
+        
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            
+            if (c >= '0' && c <= '9') {
+                if (part == 0) {
+                    // Leading zero
+                    return -1;
+                }
+                
+                part = (part < 0 ? 0 : part*10) + (c - '0');
+                
+                if (part > 255) {
+                    return -1;
+                }
+            }
+            else if (c == '.' && part >= 0 && dots < 3) {
+                address = (address << 8) | part;
+                part = -1;
+                dots++;
+            }
+            else {
+                return -1;
+            }
+        }
+        
+        if (dots != 3 || part < 0) {
+            return -1;
+        }
+        
+        address = (address << 8) | part;
+        
+        return (address << 16) | port;
+    }
+    
     /**
      * Returns the specified Relay.
      * 
@@ -931,60 +966,154 @@ public class Nexus implements OSCListener {
     }
     
     /**
-     * Saves Relay data to XML.
+     * The saved values of a Relay.
      */
-    private void saveRelays() {
-        // Check for Relays to save
-        if (relayList.size() > 0) {
-            for (Relay r : relayList) {
-                Element relayElement = writeDoc.createElement("relay");
-                
-                Element label = writeDoc.createElement("label");
-                label.appendChild(writeDoc.createTextNode(r.getLabel()));
-                relayElement.appendChild(label);
-                
-                Element ip = writeDoc.createElement("ipAddress");
-                ip.appendChild(writeDoc.createTextNode(r.getIPAddress()));
-                relayElement.appendChild(ip);
-                
-                Element port = writeDoc.createElement("port");
-                port.appendChild(writeDoc.createTextNode(Integer.toString(r.getPort())));
-                relayElement.appendChild(port);
-                
-                // Save message list
-                String[] messageList = r.getMessages();
-                
-                if (messageList.length > 0) {
-                    for (int i = 0; i < messageList.length; i++) {
-                        Element message = writeDoc.createElement("message");
-                        message.appendChild(writeDoc.createTextNode(messageList[i]));
-                        relayElement.appendChild(message);
-                    }
-                }
-                
-                writeRoot.appendChild(relayElement);
+    private static class SavedRelay {
+        String label = "";
+        String ip = "";
+        int port = 0;
+        ArrayList<String> messages = new ArrayList<String>();
+    }
+    
+    /**
+     * Reads the Relays of a junctionbox XML document as it is parsed, so no document tree is built.
+     */
+    private static class XMLHandler extends DefaultHandler {
+        /**
+         * The Relays read from the document.
+         */
+        final ArrayList<SavedRelay> relays = new ArrayList<SavedRelay>();
+        
+        /**
+         * The text of the current element.
+         */
+        private final StringBuilder text = new StringBuilder();
+        
+        /**
+         * The depth of the current element, where the root is 1.
+         */
+        private int depth = 0;
+        
+        /**
+         * Whether the root node is <junctionbox>.
+         */
+        private boolean valid = false;
+        
+        /**
+         * The Relay being read or null.
+         */
+        private SavedRelay relay;
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth++;
+            text.setLength(0);
+            
+            if (depth == 1) {
+                // The root node must be <junctionbox>
+                valid = qName.equals("junctionbox");
+            }
+            else if (valid && qName.equals("relay")) {
+                relay = new SavedRelay();
+            }
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            depth--;
+            
+            if (!valid || relay == null) {
+                return;
+            }
+            
+            if (qName.equals("label")) {
+                relay.label = text.toString();
+            }
+            else if (qName.equals("ipAddress")) {
+                relay.ip = text.toString();
+            }
+            else if (qName.equals("port")) {
+                relay.port = Integer.valueOf(text.toString());
+            }
+            else if (qName.equals("message")) {
+                relay.messages.add(text.toString());
+            }
+            else if (qName.equals("relay")) {
+                relays.add(relay);
+                relay = null;
             }
         }
     }
     
     /**
-     * Saves Junction, Relay, and Event data to XML.
+     * Copies the Relay values to save, so that they can be written while Relays keep changing.
      * 
-     * @param output the file to save to
+     * @return the saved Relay values
      */
-    public void saveXML(OutputStream output) {
-        saveRelays();
+    private ArrayList<SavedRelay> takeSnapshot() {
+        ArrayList<SavedRelay> relays = new ArrayList<SavedRelay>();
         
-        try {
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Transformer transformer = factory.newTransformer();
+        for (Relay r : relayList) {
+            SavedRelay saved = new SavedRelay();
+            saved.label = r.getLabel();
+            saved.ip = r.getIPAddress();
+            saved.port = r.getPort();
             
-            // Each tag on its own line
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            for (String message : r.getMessages()) {
+                saved.messages.add(message);
+            }
             
-            DOMSource source = new DOMSource(writeDoc);
-            StreamResult result = new StreamResult(output);
-            transformer.transform(source, result);
+            relays.add(saved);
+        }
+        
+        return relays;
+    }
+    
+    /**
+     * Saves Relay data to XML.
+     * 
+     * @param xml the document to write to
+     * @param relays the saved Relay values
+     * @throws SAXException if the document cannot be written
+     */
+    private static void saveRelays(XMLOutput xml, ArrayList<SavedRelay> relays) throws SAXException {
+        for (SavedRelay saved : relays) {
+            xml.start("relay");
+            xml.element("label", saved.label);
+            xml.element("ipAddress", saved.ip);
+            xml.element("port", Integer.toString(saved.port));
+            
+            // Save message list
+            for (String message : saved.messages) {
+                xml.element("message", message);
+            }
+            
+            xml.end("relay");
+        }
+    }
+    
+    /**
+     * Writes saved Relay values to XML and closes the stream.
+     * 
+     * @param relays the saved Relay values
+     * @param output the stream to write to
+     * @return true if the whole document was written
+     */
+    private static boolean writeXML(ArrayList<SavedRelay> relays, OutputStream output) {
+        boolean written = false;
+        
+        try {
+            XMLOutput xml = new XMLOutput(output);
+            xml.start("junctionbox");
+            saveRelays(xml, relays);
+            xml.end("junctionbox");
+            xml.finish();
+            written = true;
         }
         catch (Exception e) {
             // Do nothing
@@ -996,60 +1125,181 @@ public class Nexus implements OSCListener {
                 }
             }
             catch (IOException io) {
-                // Do nothing
+                written = false;
             }
         }
+        
+        return written;
     }
     
     /**
-     * Loads Relay data from XML.
+     * Saves Junction, Relay, and Event data to XML. The Relays are copied when this method is called and only that copy is
+     * written, so saving the same Relays again writes the same document.
+     * 
+     * @param output the file to save to
      */
-    private void loadRelays() {
-        if (readDoc != null) {
-            // The root node must be <junctionbox>
-            if (readRoot.getNodeName().equals("junctionbox")) {
-                NodeList relayNodes = readDoc.getElementsByTagName("relay");
+    public void saveXML(OutputStream output) {
+        writeXML(takeSnapshot(), output);
+    }
+    
+    /**
+     * Starts saving to XML periodically on a background thread. Each save replaces the file with the Relays at the time of the
+     * save. Any autosave that is already running is stopped first.
+     * 
+     * @param file the file to save to
+     * @param period the time between saves
+     * @param unit the unit of the time between saves
+     */
+    public synchronized void startAutosave(File file, long period, TimeUnit unit) {
+        stopAutosave();
+        
+        autosave = new Autosave(file) {
+            boolean save(OutputStream output) {
+                return writeXML(takeSnapshot(), output);
+            }
+        };
+        autosave.start(period, unit);
+    }
+    
+    /**
+     * Stops saving to XML periodically. A save that is in progress is allowed to finish.
+     */
+    public synchronized void stopAutosave() {
+        if (autosave != null) {
+            autosave.stop();
+            autosave = null;
+        }
+    }
+    
+    /**
+     * Returns true if this Nexus is saving to XML periodically.
+     * 
+     * @return true if autosaving, false otherwise
+     */
+    public boolean isAutosaving() {
+        return autosave != null;
+    }
+    
+    /**
+     * Starts pinging every connected Relay periodically on a background thread. Each echo is timed to keep the round trip time,
+     * jitter and loss rate of each Relay, which can be read from the Relay. A Relay that misses the specified number of echoes in
+     * a row is either removed from this Nexus and closed, so that nothing more is sent to it, or kept and left for the
+     * application to check with {@link Relay#getMissedEchoes()}. A kept Relay is still pinged so that it can recover. Any
+     * heartbeat that is already running is stopped first.
+     * 
+     * <p>Pings carry the socket that this Nexus listens on, so no pings are sent, and no echoes are counted as missed, until
+     * this Nexus has started listening. A ping that fails is counted as a missed echo rather than stopping the heartbeat.</p>
+     * 
+     * @param period the time between pings
+     * @param unit the unit of the time between pings
+     * @param maxMissed the number of missed echoes in a row after which a Relay is dead
+     * @param evict true to remove dead Relays, false to keep them
+     */
+    public synchronized void startHeartbeat(long period, TimeUnit unit, final int maxMissed, final boolean evict) {
+        stopHeartbeat();
+        
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "junctionbox-heartbeat");
+                t.setDaemon(true);
                 
-                for (int i = 0; i < relayNodes.getLength(); i++) {
-                    NodeList valueNodes = relayNodes.item(i).getChildNodes();
-                    
-                    String label = "";
-                    String ip = "";
-                    int port = 0;
-                    ArrayList<String> messages = new ArrayList<String>();
-                    
-                    for (int j = 0; j < valueNodes.getLength(); j++) {
-                        Node value = valueNodes.item(j);
-                        
-                        if (value.getNodeName().equals("label")) {
-                            label = value.getTextContent();
-                        }
-                        else if (value.getNodeName().equals("ipAddress")) {
-                            ip = value.getTextContent();
-                        }
-                        else if (value.getNodeName().equals("port")) {
-                            port = Integer.valueOf(value.getTextContent());
-                        }
-                        else if (value.getNodeName().equals("message")) {
-                            messages.add(value.getTextContent());
-                        }
-                    }
-                    
-                    // Create Relay
-                    Relay r = new Relay(ip, port);
-                    r.setLabel(label);
-                    
-                    for (int k = 0; k < messages.size(); k++){
-                        r.addMessage(messages.get(k));
+                return t;
+            }
+        });
+        
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                // An exception would cancel every later ping while the heartbeat still seemed to be running
+                try {
+                    if (listenAddress != null) {
+                        pingRelays(Math.max(maxMissed, 1), evict);
                     }
-                    relayList.add(r);
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
                 }
             }
+        }, 0, period, unit);
+    }
+    
+    /**
+     * Stops pinging Relays periodically.
+     */
+    public synchronized void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.shutdown();
+            heartbeat = null;
         }
     }
     
     /**
-     * Loads Junction, Relay, and Event data from XML.
+     * Returns true if this Nexus is pinging Relays periodically.
+     * 
+     * @return true if the heartbeat is running, false otherwise
+     */
+    public boolean isHeartbeating() {
+        return heartbeat != null;
+    }
+    
+    /**
+     * Pings every Relay once, after removing the Relays that are dead if eviction is on.
+     * 
+     * @param maxMissed the number of missed echoes in a row after which a Relay is dead
+     * @param evict true to remove dead Relays, false to keep them
+     */
+    private void pingRelays(int maxMissed, boolean evict) {
+        for (Relay r : relayList) {
+            // Counts the ping sent last time as lost if it was not answered
+            r.pingSent(System.nanoTime());
+            
+            if (evict && r.getMissedEchoes() >= maxMissed) {
+                removeRelay(r);
+            }
+            else {
+                sendControl(r.getIPAddress(), r.getPort(), controlMessage(NDEF_CONNECTION_PING));
+            }
+        }
+    }
+    
+    /**
+     * Removes a Relay from this Nexus and closes it.
+     * 
+     * @param r the Relay
+     */
+    private void removeRelay(Relay r) {
+        relayList.remove(r);
+        
+        long key = socketKey(r.getIPAddress(), r.getPort());
+        
+        if (key >= 0) {
+            relayMap.remove(key, r);
+            controlTargets.remove(key);
+        }
+        
+        r.close();
+    }
+    
+    /**
+     * Loads Relay data read from XML.
+     * 
+     * @param relays the saved Relay values
+     */
+    private void loadRelays(ArrayList<SavedRelay> relays) {
+        for (SavedRelay saved : relays) {
+            // Create Relay
+            Relay r = new Relay(saved.ip, saved.port);
+            r.setLabel(saved.label);
+            
+            for (int k = 0; k < saved.messages.size(); k++){
+                r.addMessage(saved.messages.get(k));
+            }
+            addRelay(r);
+        }
+    }
+    
+    /**
+     * Loads Junction, Relay, and Event data from XML. The document is read as it is parsed rather than built in memory. Nothing
+     * is loaded if the document cannot be parsed.
      * 
      * @param input the file to load from
      */
@@ -1061,8 +1311,9 @@ public class Nexus implements OSCListener {
             try {
                 // Is the file readable?
                 if (reader.ready()) {
-                    readDoc = builder.parse(input);
-                    readRoot = readDoc.getDocumentElement();
+                    XMLHandler handler = new XMLHandler();
+                    SAXParserFactory.newInstance().newSAXParser().parse(input, handler);
+                    loadRelays(handler.relays);
                 }
             }
             catch (Exception e) {
@@ -1079,7 +1330,5 @@ public class Nexus implements OSCListener {
                 }
             }
         }
-        
-        loadRelays();
     }
 }
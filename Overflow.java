@@ -0,0 +1,22 @@
+package junctionbox;
+
+/**
+ * This enumeration contains a set of constants that determine what a Relay does when its send queue is full.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+public enum Overflow {
+    /**
+     * Discard the oldest queued message to make room for the new message.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new message and keep the queued messages.
+     */
+    DROP_NEWEST,
+    /**
+     * Wait until the queue has room for the new message.
+     */
+    BLOCK
+}
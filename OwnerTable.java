@@ -0,0 +1,232 @@
+package junctionbox;
+
+/**
+ * The OwnerTable class maps the identifiers of the Contacts that are down to the Junctions that own them without boxing. TUIO
+ * session identifiers and playback identifiers fall outside the small range of cached Integers, so a map keyed by Integer
+ * would allocate on every Contact event. The table uses open addressing with linear probing over parallel arrays, and removal
+ * shifts later entries back so that no deleted markers build up.
+ * 
+ * <p>The table grows when it is half full and never shrinks, so once it has held the largest number of simultaneous Contacts
+ * it stops allocating.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class OwnerTable {
+    /**
+     * The initial number of slots, which must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /**
+     * The Contact identifier in each slot.
+     */
+    private int[] ids = new int[INITIAL_CAPACITY];
+    
+    /**
+     * The owning Junction in each slot, or null for an empty slot.
+     */
+    private Junction[] owners = new Junction[INITIAL_CAPACITY];
+    
+    /**
+     * The number of Contacts in the table.
+     */
+    private int size = 0;
+    
+    /**
+     * Returns the Junction that owns the specified Contact.
+     * 
+     * @param id the Contact identifier
+     * @return the owner or null if the Contact is not in this table
+     */
+    synchronized Junction get(int id) {
+        int i = indexOf(id);
+        
+        return i < 0 ? null : owners[i];
+    }
+    
+    /**
+     * Sets the Junction that owns the specified Contact, replacing any previous owner.
+     * 
+     * @param id the Contact identifier
+     * @param owner the owner
+     */
+    synchronized void put(int id, Junction owner) {
+        int mask = ids.length - 1;
+        int i = home(id, mask);
+        
+        while (owners[i] != null) {
+            if (ids[i] == id) {
+                owners[i] = owner;
+                return;
+            }
+            
+            i = (i + 1) & mask;
+        }
+        
+        ids[i] = id;
+        owners[i] = owner;
+        size++;
+        
+        if (size*2 > ids.length) {
+            rehash(ids.length*2, null);
+        }
+    }
+    
+    /**
+     * Removes the specified Contact.
+     * 
+     * @param id the Contact identifier
+     * @return the Junction that owned the Contact or null if the Contact was not in this table
+     */
+    synchronized Junction remove(int id) {
+        int i = indexOf(id);
+        
+        if (i < 0) {
+            return null;
+        }
+        
+        Junction removed = owners[i];
+        int mask = ids.length - 1;
+        int j = i;
+        
+        // Move back every later entry of the run that would otherwise no longer be found
+        while (true) {
+            j = (j + 1) & mask;
+            
+            if (owners[j] == null) {
+                break;
+            }
+            
+            int h = home(ids[j], mask);
+            
+            // An entry can move to the gap unless its home lies cyclically between the gap and the entry
+            if (((j - h) & mask) >= ((j - i) & mask)) {
+                ids[i] = ids[j];
+                owners[i] = owners[j];
+                i = j;
+            }
+        }
+        
+        owners[i] = null;
+        size--;
+        
+        return removed;
+    }
+    
+    /**
+     * Removes every Contact owned by the specified Junction or by any of its subjunctions.
+     * 
+     * @param root the top-level Junction
+     */
+    synchronized void removeRoot(Junction root) {
+        rehash(ids.length, root);
+    }
+    
+    /**
+     * Removes all Contacts.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = null;
+        }
+        
+        size = 0;
+    }
+    
+    /**
+     * Returns the number of Contacts.
+     * 
+     * @return the Contact count
+     */
+    synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the identifiers of all Contacts as a new array.
+     * 
+     * @return the Contact identifiers in no particular order
+     */
+    synchronized int[] ids() {
+        int[] a = new int[size];
+        int n = 0;
+        
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] != null) {
+                a[n++] = ids[i];
+            }
+        }
+        
+        return a;
+    }
+    
+    /**
+     * Moves the entries into new arrays of the specified length, leaving out the Contacts of a Junction.
+     * 
+     * @param capacity the new number of slots, which must be a power of two
+     * @param root the Junction whose Contacts are left out, or null to keep every Contact
+     */
+    private void rehash(int capacity, Junction root) {
+        int[] oldIDs = ids;
+        Junction[] oldOwners = owners;
+        ids = new int[capacity];
+        owners = new Junction[capacity];
+        size = 0;
+        
+        int mask = capacity - 1;
+        
+        for (int k = 0; k < oldOwners.length; k++) {
+            Junction owner = oldOwners[k];
+            
+            if (owner == null || (root != null && owner.getRoot() == root)) {
+                continue;
+            }
+            
+            int i = home(oldIDs[k], mask);
+            
+            while (owners[i] != null) {
+                i = (i + 1) & mask;
+            }
+            
+            ids[i] = oldIDs[k];
+            owners[i] = owner;
+            size++;
+        }
+    }
+    
+    /**
+     * Returns the slot that holds the specified identifier.
+     * 
+     * @param id the Contact identifier
+     * @return the slot or -1 if the identifier is not in this table
+     */
+    private int indexOf(int id) {
+        int mask = ids.length - 1;
+        int i = home(id, mask);
+        
+        while (owners[i] != null) {
+            if (ids[i] == id) {
+                return i;
+            }
+            
+            i = (i + 1) & mask;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Returns the first slot to probe for an identifier. Identifiers are scrambled first because session identifiers count up
+     * and playback identifiers count down, which would otherwise fill neighbouring slots.
+     * 
+     * @param id the Contact identifier
+     * @param mask the number of slots minus one
+     * @return the slot
+     */
+    private static int home(int id, int mask) {
+        int h = id*0x9E3779B9;
+        
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
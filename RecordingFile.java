@@ -0,0 +1,196 @@
+package junctionbox;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * The RecordingFile class reads and writes the binary recording format. A recording file starts with a header of the magic
+ * bytes "JBXR", the format version and the number of Takes. Each Take follows as a header of its event count, loop length,
+ * rate and mute flag, and then its events as fixed-width records of {@link EventStore#RECORD_SIZE} bytes in order of delay.
+ * All values are big-endian.
+ * 
+ * <p>Files are read by mapping the records of each Take into memory, so loading only reads the headers and playback can start
+ * straight away while the operating system pages the records in as they are played. Takes too large for a single mapping
+ * are mapped in segments of {@link EventStore#SEGMENT_SIZE} records.</p>
+ * 
+ * <p>A file that is still being written by a {@link SpillLog} has an open event count for its last Take. Its records run to
+ * the end of the file, so a recording that was cut off by a crash can still be read up to its last complete event.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class RecordingFile {
+    /**
+     * The magic bytes "JBXR" that start every recording file.
+     */
+    static final int MAGIC = 0x4A425852;
+    
+    /**
+     * The version of the format.
+     */
+    static final int VERSION = 1;
+    
+    /**
+     * The number of bytes in the file header: the magic bytes, the version and the Take count.
+     */
+    static final int HEADER_SIZE = 12;
+    
+    /**
+     * The number of bytes in a Take header: the event count, loop length, rate and mute flag.
+     */
+    static final int TAKE_HEADER_SIZE = 21;
+    
+    /**
+     * The event count of a Take whose records run to the end of the file.
+     */
+    static final int OPEN_COUNT = -1;
+    
+    /**
+     * Writes the specified Takes to a stream. The events of each Take are sorted first.
+     * 
+     * @param takes the Takes to write
+     * @param output the stream to write to, which is not closed
+     * @throws IOException if the stream cannot be written
+     */
+    static void write(Take[] takes, OutputStream output) throws IOException {
+        DataOutputStream data = new DataOutputStream(output);
+        
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(takes.length);
+        
+        for (Take t : takes) {
+            t.events.sort();
+            
+            data.writeInt(t.events.size());
+            data.writeLong(t.loopLength);
+            data.writeDouble(t.getRate());
+            data.writeBoolean(t.isMuted());
+            
+            t.events.write(data);
+        }
+        
+        data.flush();
+    }
+    
+    /**
+     * Reads the Takes from a file by mapping their records into memory.
+     * 
+     * @param file the file to read
+     * @param firstID the identifier for the first Take, with the rest numbered in order
+     * @return the Takes
+     * @throws IOException if the file cannot be read or is not a recording file
+     */
+    static ArrayList<Take> read(File file, int firstID) throws IOException {
+        ArrayList<Take> takes = new ArrayList<Take>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a recording file: " + file);
+            }
+            
+            int takeCount = header.getInt(8);
+            long position = HEADER_SIZE;
+            ByteBuffer takeHeader = ByteBuffer.allocate(TAKE_HEADER_SIZE);
+            
+            for (int i = 0; i < takeCount; i++) {
+                takeHeader.clear();
+                readFully(channel, takeHeader, position);
+                position += TAKE_HEADER_SIZE;
+                
+                int count = takeHeader.getInt(0);
+                
+                if (count == OPEN_COUNT && i == takeCount - 1) {
+                    count = (int)Math.min((channel.size() - position)/EventStore.RECORD_SIZE, Integer.MAX_VALUE);
+                }
+                
+                long length = (long)count*EventStore.RECORD_SIZE;
+                
+                if (count < 0 || position + length > channel.size()) {
+                    throw new IOException("Corrupt recording file: " + file);
+                }
+                
+                // A single mapping cannot be larger than 2 GiB, so large Takes are mapped in segments
+                int segmentCount = (int)(((long)count + EventStore.SEGMENT_SIZE - 1) >>> EventStore.SEGMENT_BITS);
+                ByteBuffer[] segments = new ByteBuffer[segmentCount];
+                
+                for (int s = 0; s < segments.length; s++) {
+                    long start = (long)s*EventStore.SEGMENT_SIZE;
+                    long records = Math.min(EventStore.SEGMENT_SIZE, count - start);
+                    
+                    // The mapping stays valid after the file is closed
+                    segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position + start*EventStore.RECORD_SIZE,
+                        records*EventStore.RECORD_SIZE);
+                }
+                
+                position += length;
+                
+                Take t = new Take(firstID + i, EventStore.map(segments, count));
+                t.loopLength = Math.max(takeHeader.getLong(4), 0);
+                t.setRate(takeHeader.getDouble(12));
+                t.setMuted(takeHeader.get(20) != 0);
+                takes.add(t);
+            }
+        }
+        finally {
+            try {
+                raf.close();
+            }
+            catch (IOException io) {
+                // Do nothing
+            }
+        }
+        
+        return takes;
+    }
+    
+    /**
+     * Returns the header of a file with a single Take whose event count is open, for appending records to.
+     * 
+     * @return the header, ready to be written
+     */
+    static ByteBuffer openLogHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + TAKE_HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(1);
+        header.putInt(OPEN_COUNT);
+        header.putLong(0);
+        header.putDouble(1.0);
+        header.put((byte)0);
+        header.flip();
+        
+        return header;
+    }
+    
+    /**
+     * Fills a buffer from a channel starting at the specified position.
+     * 
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     * @param position the position in the channel
+     * @throws IOException if the channel ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            
+            if (n < 0) {
+                throw new IOException("Unexpected end of recording file");
+            }
+            
+            position += n;
+        }
+    }
+}
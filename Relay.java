@@ -2,14 +2,34 @@ package junctionbox;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.illposed.osc.OSCMessage;
-import com.illposed.osc.OSCPortOut;
+import com.illposed.osc.OSCPacket;
 
 /**
  * The Relay class sends OSC messages to the specified target. Messages are stored and referred to by their address pattern with
  * the ability to add integers, floats, longs, strings and blobs to the specified address pattern. Type tags are automatically
  * created when the message is sent.
+ * <p>
+ * Messages are sent by a single long-lived sender thread that takes them from a bounded queue, so messages leave in the order
+ * in which they were sent. The sender thread is started when needed and exits after it has been idle for a few seconds. What
+ * happens when the queue is full is determined by the {@link junctionbox.Overflow} policy.
+ * <p>
+ * Messages sent between {@link #beginBundle()} and {@link #flushBundle()} are collected into a single OSC bundle that is sent
+ * as one packet.
+ * <p>
+ * Messages with only integer and float arguments can be sent with the send methods that take the arguments directly, such as
+ * {@link #send(String, float)}. These methods encode the address pattern and type tags once per message and reuse pooled
+ * buffers, so sending does not allocate objects once a message has been sent for the first time. With
+ * {@link #setCoalescing(boolean)}, these messages are instead held until {@link #flushFrame()} so that only the latest value of
+ * each message is sent.
  * 
  * @author Lawrence Fyfe
  * @version 0.99
@@ -17,9 +37,55 @@ import com.illposed.osc.OSCPortOut;
  */
 public class Relay {
     /**
-     * The OSC port for sending out messages.
+     * The default number of messages that can wait in the send queue.
      */
-    private OSCPortOut out;
+    public static final int DEFAULT_CAPACITY = 256;
+    
+    /**
+     * The number of milliseconds that the sender thread waits for new messages before exiting.
+     */
+    private static final long IDLE_TIMEOUT = 5000;
+    
+    /**
+     * The number of milliseconds that a send waits for a datagram to be released when every datagram is in use and none is
+     * queued, as can happen with {@link Overflow#DROP_OLDEST}, before the message is dropped.
+     */
+    private static final long DROP_TIMEOUT = 10;
+    
+    /**
+     * The initial size in bytes of each pooled datagram buffer. Buffers grow when a larger packet is sent.
+     */
+    private static final int DATAGRAM_SIZE = 512;
+    
+    /**
+     * The largest payload that fits in a single UDP datagram.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    
+    /**
+     * The size of an OSC bundle header: the "#bundle" string followed by an 8 byte time tag.
+     */
+    private static final int BUNDLE_HEADER_SIZE = 16;
+    
+    /**
+     * The "#bundle" string that begins every OSC bundle, including the terminating null.
+     */
+    private static final byte[] BUNDLE_TAG = {'#', 'b', 'u', 'n', 'd', 'l', 'e', 0};
+    
+    /**
+     * The OSC time tag that means "immediately".
+     */
+    private static final long IMMEDIATELY = 1L;
+    
+    /**
+     * The channel for sending out messages.
+     */
+    private volatile DatagramChannel channel;
+    
+    /**
+     * The resolved socket address that messages will be sent to.
+     */
+    private volatile InetSocketAddress target;
     
     /**
      * The IP address that messages will be sent to.
@@ -36,6 +102,17 @@ public class Relay {
      */
     private ConcurrentHashMap<String,OSCMessage> messageMap;
     
+    /**
+     * The map that contains pre-encoded messages where the key is the message address pattern String.
+     */
+    private ConcurrentHashMap<String,Encoder> encoderMap;
+    
+    /**
+     * The number of Junction mappings of each message, so that a message shared by several Junctions stays in this Relay until
+     * the last of them unmaps it.
+     */
+    private final HashMap<String,int[]> mappingCounts = new HashMap<String,int[]>();
+    
     /**
      * The label given to this Relay.
      */
@@ -57,21 +134,352 @@ public class Relay {
     private boolean remoteEcho = false;
     
     /**
-     * A Sender is a thread for sending messages.
+     * The nanosecond tick at which the last unanswered ping was sent, or 0 if no ping is waiting for an echo.
      */
-    private class Sender extends Thread {
-        OSCMessage message;
+    private long pingTick = 0;
+    
+    /**
+     * The smoothed round trip time in nanoseconds.
+     */
+    private long roundTripTime = 0;
+    
+    /**
+     * The smoothed variation between consecutive round trip times in nanoseconds.
+     */
+    private long jitter = 0;
+    
+    /**
+     * The last round trip time in nanoseconds, or -1 if no echo has been received.
+     */
+    private long lastRoundTripTime = -1;
+    
+    /**
+     * The number of pings in a row that have not been answered.
+     */
+    private int missedEchoes = 0;
+    
+    /**
+     * The number of pings that were answered.
+     */
+    private long echoCount = 0;
+    
+    /**
+     * The number of pings that were not answered.
+     */
+    private long lostCount = 0;
+    
+    /**
+     * The number of datagrams that can exist at once, which bounds the number of messages waiting to be sent.
+     */
+    private int capacity;
+    
+    /**
+     * The queue of datagrams waiting to be sent.
+     */
+    private DatagramQueue sendQueue;
+    
+    /**
+     * The queue of datagrams that are free to be filled.
+     */
+    private DatagramQueue freeQueue;
+    
+    /**
+     * The number of datagrams created so far. Datagrams are created on demand up to the capacity and then reused.
+     */
+    private AtomicInteger datagramCount = new AtomicInteger();
+    
+    /**
+     * What to do when the send queue is full.
+     */
+    private volatile Overflow overflow = Overflow.DROP_OLDEST;
+    
+    /**
+     * The number of packets discarded because the send queue was full.
+     */
+    private AtomicLong droppedCount = new AtomicLong();
+    
+    /**
+     * The current sender thread or null if no sender thread is running.
+     */
+    private Sender sender;
+    
+    /**
+     * Guards starting and stopping of the sender thread.
+     */
+    private final Object senderLock = new Object();
+    
+    /**
+     * The datagram collecting messages between beginBundle() and flushBundle() or null if no message has been bundled yet.
+     */
+    private Datagram bundle;
+    
+    /**
+     * The number of messages in the open bundle.
+     */
+    private int bundleCount = 0;
+    
+    /**
+     * The number of nested beginBundle() calls that have not been flushed.
+     */
+    private int bundleDepth = 0;
+    
+    /**
+     * The thread that opened the current bundle. Messages sent from other threads are not bundled.
+     */
+    private Thread bundleOwner;
+    
+    /**
+     * Guards the open bundle.
+     */
+    private final Object bundleLock = new Object();
+    
+    /**
+     * Determines whether typed messages are held until flushFrame() is called.
+     */
+    private volatile boolean coalescing = false;
+    
+    /**
+     * The number of messages held for the current frame.
+     */
+    private int frameCount = 0;
+    
+    /**
+     * The Encoders of the held messages in the order they were first sent.
+     */
+    private Encoder[] frameEncoders = new Encoder[16];
+    
+    /**
+     * The type tag strings of the held messages.
+     */
+    private String[] frameTags = new String[16];
+    
+    /**
+     * Whether each held message is kept per value of its first argument.
+     */
+    private boolean[] frameKeyed = new boolean[16];
+    
+    /**
+     * Whether each held message is an event that is sent as it was held instead of being replaced by later values.
+     */
+    private boolean[] frameEvents = new boolean[16];
+    
+    /**
+     * The arguments of the held messages, three per message, with floats stored as raw bits.
+     */
+    private int[] frameArguments = new int[16*3];
+    
+    /**
+     * An open addressed index into the held messages, storing the message index plus one, or zero for an empty slot.
+     */
+    private int[] frameIndex = new int[32];
+    
+    /**
+     * Guards the held messages.
+     */
+    private final Object frameLock = new Object();
+    
+    /**
+     * A Datagram holds the bytes of one packet waiting to be sent. Datagrams are pooled and reused so that sending does not
+     * allocate.
+     */
+    private static class Datagram {
+        ByteBuffer data = ByteBuffer.allocateDirect(DATAGRAM_SIZE);
         
-        Sender(OSCMessage m) {
-            message = m;
+        /**
+         * Ensures that the specified number of bytes can be added after the current position, keeping any bytes already written.
+         * 
+         * @param n the number of bytes to add
+         */
+        void ensureRemaining(int n) {
+            if (data.remaining() < n) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(data.capacity()*2, data.position() + n));
+                data.flip();
+                larger.put(data);
+                data = larger;
+            }
         }
+    }
+    
+    /**
+     * A DatagramQueue is a bounded first-in first-out queue of datagrams. It waits on its own monitor instead of using the locks
+     * in java.util.concurrent, which allocate a node every time a thread has to wait for them, so that passing datagrams between
+     * the sending threads and the sender thread never allocates.
+     */
+    private static final class DatagramQueue {
+        /**
+         * The queued datagrams in a ring.
+         */
+        private final Datagram[] items;
         
-        public void run() {
-            try {
-                out.send(message);
+        /**
+         * The position of the oldest datagram in the ring.
+         */
+        private int head = 0;
+        
+        /**
+         * The number of queued datagrams.
+         */
+        private int count = 0;
+        
+        /**
+         * Constructs a new DatagramQueue that holds up to the specified number of datagrams.
+         * 
+         * @param capacity the number of datagrams
+         */
+        DatagramQueue(int capacity) {
+            items = new Datagram[capacity];
+        }
+        
+        /**
+         * Adds a datagram to the end of the queue unless the queue is full.
+         * 
+         * @param d the datagram
+         * @return true if the datagram was added, false if the queue is full
+         */
+        synchronized boolean offer(Datagram d) {
+            if (count == items.length) {
+                return false;
+            }
+            
+            items[(head + count) % items.length] = d;
+            count++;
+            notify();
+            
+            return true;
+        }
+        
+        /**
+         * Removes the oldest datagram.
+         * 
+         * @return the datagram or null if the queue is empty
+         */
+        synchronized Datagram poll() {
+            if (count == 0) {
+                return null;
+            }
+            
+            Datagram d = items[head];
+            items[head] = null;
+            head = (head + 1) % items.length;
+            count--;
+            
+            return d;
+        }
+        
+        /**
+         * Removes the oldest datagram, waiting up to the specified time for one to be added if the queue is empty.
+         * 
+         * @param millis the longest time to wait in milliseconds
+         * @return the datagram or null if none was added in time
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        synchronized Datagram poll(long millis) throws InterruptedException {
+            long deadline = System.nanoTime() + millis*1000000L;
+            
+            while (count == 0) {
+                long left = deadline - System.nanoTime();
+                
+                if (left <= 0) {
+                    return null;
+                }
+                
+                wait(left/1000000L, (int)(left%1000000L));
+            }
+            
+            return poll();
+        }
+        
+        /**
+         * Removes the oldest datagram, waiting for one to be added if the queue is empty.
+         * 
+         * @return the datagram
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        synchronized Datagram take() throws InterruptedException {
+            while (count == 0) {
+                wait();
+            }
+            
+            return poll();
+        }
+        
+        /**
+         * Returns the number of queued datagrams.
+         * 
+         * @return the datagram count
+         */
+        synchronized int size() {
+            return count;
+        }
+        
+        /**
+         * Returns true if no datagrams are queued.
+         * 
+         * @return true if the queue is empty
+         */
+        synchronized boolean isEmpty() {
+            return count == 0;
+        }
+        
+        /**
+         * Removes all queued datagrams.
+         */
+        synchronized void clear() {
+            while (count > 0) {
+                poll();
             }
-            catch(IOException e) {
+        }
+    }
+    
+    /**
+     * A Sender is a thread for sending messages. It takes datagrams from the send queue in order and exits when the queue has
+     * been empty for longer than the idle timeout.
+     */
+    private class Sender extends Thread {
+        Sender() {
+            super("Relay " + ipAddress + ":" + port);
+            setDaemon(true);
+        }
+        
+        public void run() {
+            while (true) {
+                Datagram d;
                 
+                try {
+                    d = sendQueue.poll(IDLE_TIMEOUT);
+                }
+                catch (InterruptedException e) {
+                    // The Relay has been closed
+                    return;
+                }
+                
+                if (d == null) {
+                    synchronized (senderLock) {
+                        // Only exit if nothing arrived while deciding to exit
+                        if (sendQueue.isEmpty()) {
+                            if (sender == this) {
+                                sender = null;
+                            }
+                            return;
+                        }
+                    }
+                }
+                else {
+                    DatagramChannel c = channel;
+                    InetSocketAddress t = target;
+                    
+                    if (c != null && t != null) {
+                        try {
+                            c.send(d.data, t);
+                        }
+                        catch (IOException e) {
+                            // Do nothing
+                        }
+                    }
+                    
+                    d.data.clear();
+                    freeQueue.offer(d);
+                }
             }
         }
     }
@@ -84,12 +492,40 @@ public class Relay {
      * @param p the port number of the target
      */
     public Relay(String ip, int p) {
+        this(ip, p, DEFAULT_CAPACITY, Overflow.DROP_OLDEST);
+    }
+    
+    /**
+     * Constructs a new Relay object with the specified target address and port, send queue capacity and overflow policy.
+     * 
+     * @param ip the IP address of the target
+     * @param p the port number of the target
+     * @param capacity the number of messages that can wait to be sent
+     * @param o what to do when the send queue is full
+     */
+    public Relay(String ip, int p, int capacity, Overflow o) {
         ipAddress = ip;
         port = p;
         messageMap = new ConcurrentHashMap<String,OSCMessage>();
+        encoderMap = new ConcurrentHashMap<String,Encoder>();
+        
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        sendQueue = new DatagramQueue(this.capacity);
+        freeQueue = new DatagramQueue(this.capacity);
+        
+        if (o != null) {
+            overflow = o;
+        }
         
         try {
-            out = new OSCPortOut(InetAddress.getByName(ip), port);
+            channel = DatagramChannel.open();
+        }
+        catch (IOException e) {
+            // Do nothing
+        }
+        
+        try {
+            target = new InetSocketAddress(InetAddress.getByName(ip), port);
         }
         catch (Exception e) {
             // Do nothing
@@ -107,10 +543,10 @@ public class Relay {
         port = p;
         
         try {
-            out = new OSCPortOut(InetAddress.getByName(ip), port);
+            target = new InetSocketAddress(InetAddress.getByName(ip), port);
         }
         catch (Exception e) {
-            // Do nothing
+            target = null;
         }
     }
     
@@ -132,6 +568,44 @@ public class Relay {
         return port;
     }
     
+    /**
+     * Sets what this Relay does when its send queue is full. The default is {@link Overflow#DROP_OLDEST}.
+     * 
+     * @param o the overflow policy
+     */
+    public void setOverflow(Overflow o) {
+        if (o != null) {
+            overflow = o;
+        }
+    }
+    
+    /**
+     * Returns what this Relay does when its send queue is full.
+     * 
+     * @return the overflow policy
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+    
+    /**
+     * Returns the number of messages that were discarded because the send queue was full.
+     * 
+     * @return the dropped message count
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
+    /**
+     * Returns the number of messages waiting to be sent.
+     * 
+     * @return the queued message count
+     */
+    public int getQueuedCount() {
+        return sendQueue.size();
+    }
+    
     /**
      * Sets the label for this Relay.
      * 
@@ -174,6 +648,88 @@ public class Relay {
         return remoteEcho;
     }
     
+    /**
+     * Records that a ping was sent to the remote node. A ping that is still waiting for an echo counts as lost.
+     * 
+     * @param tick the nanosecond tick at which the ping was sent
+     */
+    synchronized void pingSent(long tick) {
+        if (pingTick != 0) {
+            missedEchoes++;
+            lostCount++;
+        }
+        
+        pingTick = tick;
+        remoteEcho = false;
+    }
+    
+    /**
+     * Records that an echo was received from the remote node and updates the round trip statistics. An echo that does not
+     * answer a ping is ignored.
+     * 
+     * @param tick the nanosecond tick at which the echo was received
+     */
+    synchronized void echoReceived(long tick) {
+        if (pingTick == 0) {
+            return;
+        }
+        
+        long rtt = Math.max(tick - pingTick, 0);
+        pingTick = 0;
+        
+        if (lastRoundTripTime < 0) {
+            roundTripTime = rtt;
+        }
+        else {
+            // Smoothed as in RTP, with a gain of 1/8 for the time and 1/16 for the jitter
+            roundTripTime += (rtt - roundTripTime)/8;
+            jitter += (Math.abs(rtt - lastRoundTripTime) - jitter)/16;
+        }
+        
+        lastRoundTripTime = rtt;
+        missedEchoes = 0;
+        echoCount++;
+        remoteEcho = true;
+    }
+    
+    /**
+     * Returns the smoothed round trip time of pings to the remote node.
+     * 
+     * @return the round trip time in nanoseconds or -1 if no echo has been received
+     */
+    public synchronized long getRoundTripTime() {
+        return lastRoundTripTime < 0 ? -1 : roundTripTime;
+    }
+    
+    /**
+     * Returns the smoothed variation between the round trip times of consecutive pings to the remote node.
+     * 
+     * @return the jitter in nanoseconds
+     */
+    public synchronized long getJitter() {
+        return jitter;
+    }
+    
+    /**
+     * Returns the fraction of pings to the remote node that were not answered. A ping counts once the next ping is sent.
+     * 
+     * @return the loss rate from 0 to 1
+     */
+    public synchronized double getLossRate() {
+        long total = echoCount + lostCount;
+        
+        return total > 0 ? (double)lostCount/total : 0;
+    }
+    
+    /**
+     * Returns the number of pings in a row that the remote node has not answered.
+     * 
+     * @return the missed echo count
+     */
+    public synchronized int getMissedEchoes() {
+        return missedEchoes;
+    }
+    
     /**
      * Returns all messages associated with this Relay as an array of Strings.
      * 
@@ -407,6 +963,8 @@ public class Relay {
             messageMap.put(a2, m);
             messageMap.remove(a1);
         }
+        
+        encoderMap.remove(a1);
     }
     
     /**
@@ -416,6 +974,46 @@ public class Relay {
      */
     public void removeMessage(String a) {
         messageMap.remove(a);
+        encoderMap.remove(a);
+    }
+    
+    /**
+     * Adds a message on behalf of a Junction that maps it. Every call must be matched by a call to
+     * {@link #releaseMessage(String)} when the Junction unmaps the message or moves to another Relay.
+     * 
+     * @param a the message to add
+     */
+    void retainMessage(String a) {
+        synchronized (mappingCounts) {
+            int[] count = mappingCounts.get(a);
+            
+            if (count == null) {
+                count = new int[1];
+                mappingCounts.put(a, count);
+            }
+            
+            count[0]++;
+            addMessage(a);
+        }
+    }
+    
+    /**
+     * Releases a message added with {@link #retainMessage(String)}. The message is removed once no Junction maps it, so a
+     * Junction that unmaps a message does not take it away from the other Junctions that share this Relay.
+     * 
+     * @param a the message to release
+     */
+    void releaseMessage(String a) {
+        synchronized (mappingCounts) {
+            int[] count = mappingCounts.get(a);
+            
+            if (count == null || --count[0] > 0) {
+                return;
+            }
+            
+            mappingCounts.remove(a);
+            removeMessage(a);
+        }
     }
     
     /**
@@ -423,6 +1021,7 @@ public class Relay {
      */
     public void clearMessages() {
         messageMap.clear();
+        encoderMap.clear();
     }
     
     /**
@@ -430,7 +1029,7 @@ public class Relay {
      */
     public void send() {
         for (OSCMessage m : messageMap.values()) {
-            new Sender(m).start();
+            enqueue(m);
         }
     }
     
@@ -440,8 +1039,10 @@ public class Relay {
      * @param message the message to send
      */
     public void send(String message) {
-        if (messageMap.containsKey(message)) {
-            new Sender(messageMap.get(message)).start();
+        OSCMessage m = messageMap.get(message);
+        
+        if (m != null) {
+            enqueue(m);
         }
     }
     
@@ -452,8 +1053,611 @@ public class Relay {
      */
     public void send(String[] m) {
         for (String s : m) {
-            if (messageMap.containsKey(s)) {
-                new Sender(messageMap.get(s)).start();
+            OSCMessage message = messageMap.get(s);
+            
+            if (message != null) {
+                enqueue(message);
+            }
+        }
+    }
+    
+    /**
+     * Sends the specified message with a single integer argument. The message does not need to have been added to this Relay
+     * and any arguments added to it with the add methods are not sent.
+     * 
+     * @param message the message to send
+     * @param i the integer argument
+     */
+    public void send(String message, int i) {
+        send(getEncoder(message), Encoder.INT, i, 0, 0);
+    }
+    
+    /**
+     * Sends the specified message with a single float argument. The message does not need to have been added to this Relay
+     * and any arguments added to it with the add methods are not sent.
+     * 
+     * @param message the message to send
+     * @param f the float argument
+     */
+    public void send(String message, float f) {
+        send(getEncoder(message), Encoder.FLOAT, Float.floatToRawIntBits(f), 0, 0);
+    }
+    
+    /**
+     * Sends the specified message with two float arguments. The message does not need to have been added to this Relay
+     * and any arguments added to it with the add methods are not sent.
+     * 
+     * @param message the message to send
+     * @param f1 the first float argument
+     * @param f2 the second float argument
+     */
+    public void send(String message, float f1, float f2) {
+        send(getEncoder(message), Encoder.FLOAT_FLOAT, Float.floatToRawIntBits(f1), Float.floatToRawIntBits(f2), 0);
+    }
+    
+    /**
+     * Sends the specified message with an integer argument followed by a float argument. The message does not need to have been
+     * added to this Relay and any arguments added to it with the add methods are not sent.
+     * 
+     * @param message the message to send
+     * @param i the integer argument
+     * @param f the float argument
+     */
+    public void send(String message, int i, float f) {
+        send(getEncoder(message), Encoder.INT_FLOAT, i, Float.floatToRawIntBits(f), 0);
+    }
+    
+    /**
+     * Sends the specified message with an integer argument followed by two float arguments. The message does not need to have
+     * been added to this Relay and any arguments added to it with the add methods are not sent.
+     * 
+     * @param message the message to send
+     * @param i the integer argument
+     * @param f1 the first float argument
+     * @param f2 the second float argument
+     */
+    public void send(String message, int i, float f1, float f2) {
+        send(getEncoder(message), Encoder.INT_FLOAT_FLOAT, i, Float.floatToRawIntBits(f1), Float.floatToRawIntBits(f2));
+    }
+    
+    /**
+     * Sends a precompiled message with a single integer argument.
+     * 
+     * @param e the Encoder for the message
+     * @param i the integer argument
+     */
+    void send(Encoder e, int i) {
+        send(e, Encoder.INT, i, 0, 0);
+    }
+    
+    /**
+     * Sends a precompiled message with a single integer argument whose every value matters, such as an activation, a toggle or
+     * a count. While coalescing, the message is held in order with the rest of the frame and never replaced by a later value.
+     * 
+     * @param e the Encoder for the message
+     * @param i the integer argument
+     */
+    void sendEvent(Encoder e, int i) {
+        if (coalescing) {
+            hold(e, Encoder.INT, i, 0, 0, true);
+        }
+        else {
+            write(e, Encoder.INT, i, 0, 0);
+        }
+    }
+    
+    /**
+     * Sends a precompiled message with a single float argument.
+     * 
+     * @param e the Encoder for the message
+     * @param f the float argument
+     */
+    void send(Encoder e, float f) {
+        send(e, Encoder.FLOAT, Float.floatToRawIntBits(f), 0, 0);
+    }
+    
+    /**
+     * Sends a precompiled message with two float arguments.
+     * 
+     * @param e the Encoder for the message
+     * @param f1 the first float argument
+     * @param f2 the second float argument
+     */
+    void send(Encoder e, float f1, float f2) {
+        send(e, Encoder.FLOAT_FLOAT, Float.floatToRawIntBits(f1), Float.floatToRawIntBits(f2), 0);
+    }
+    
+    /**
+     * Sends a precompiled message with an integer argument followed by a float argument.
+     * 
+     * @param e the Encoder for the message
+     * @param i the integer argument
+     * @param f the float argument
+     */
+    void send(Encoder e, int i, float f) {
+        send(e, Encoder.INT_FLOAT, i, Float.floatToRawIntBits(f), 0);
+    }
+    
+    /**
+     * Sends a precompiled message with an integer argument followed by two float arguments.
+     * 
+     * @param e the Encoder for the message
+     * @param i the integer argument
+     * @param f1 the first float argument
+     * @param f2 the second float argument
+     */
+    void send(Encoder e, int i, float f1, float f2) {
+        send(e, Encoder.INT_FLOAT_FLOAT, i, Float.floatToRawIntBits(f1), Float.floatToRawIntBits(f2));
+    }
+    
+    /**
+     * Determines whether messages are held and coalesced until {@link #flushFrame()} is called. While coalescing, only the latest
+     * value of each message sent with the typed send methods is kept. Messages whose first argument is an integer followed by
+     * floats, such as Contact messages, are kept per value of that integer so that every Contact keeps its latest position.
+     * Events sent with sendEvent(), such as activations, toggles and counts, are never replaced: they are held in the order they
+     * were sent so that a tap that starts and ends within one frame still reaches the receiver. Messages sent with the other
+     * send methods are not held. Turning coalescing off sends any held messages.
+     * 
+     * @param c true to coalesce messages, false to send them immediately
+     */
+    public void setCoalescing(boolean c) {
+        coalescing = c;
+        
+        if (!c) {
+            flushFrame();
+        }
+    }
+    
+    /**
+     * Returns true if messages are being held until {@link #flushFrame()} is called.
+     * 
+     * @return true if coalescing, false otherwise
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+    
+    /**
+     * Sends the latest value of every message held since the last flush as a single OSC bundle.
+     */
+    public void flushFrame() {
+        synchronized (frameLock) {
+            if (frameCount == 0) {
+                return;
+            }
+            
+            beginBundle();
+            
+            try {
+                for (int i = 0; i < frameCount; i++) {
+                    int a = i*3;
+                    write(frameEncoders[i], frameTags[i], frameArguments[a], frameArguments[a + 1], frameArguments[a + 2]);
+                    frameEncoders[i] = null;
+                    frameTags[i] = null;
+                }
+            }
+            finally {
+                flushBundle();
+            }
+            
+            frameCount = 0;
+            Arrays.fill(frameIndex, 0);
+        }
+    }
+    
+    /**
+     * Sends or, while coalescing, holds a message with up to three integer or float arguments. Float arguments are passed as
+     * their raw bits.
+     * 
+     * @param e the Encoder for the message
+     * @param tags the type tag string
+     * @param a0 the first argument
+     * @param a1 the second argument
+     * @param a2 the third argument
+     */
+    private void send(Encoder e, String tags, int a0, int a1, int a2) {
+        if (coalescing) {
+            hold(e, tags, a0, a1, a2, false);
+        }
+        else {
+            write(e, tags, a0, a1, a2);
+        }
+    }
+    
+    /**
+     * Encodes a message and queues it for sending.
+     * 
+     * @param e the Encoder for the message
+     * @param tags the type tag string
+     * @param a0 the first argument
+     * @param a1 the second argument
+     * @param a2 the third argument
+     */
+    private void write(Encoder e, String tags, int a0, int a1, int a2) {
+        int n = tags.length() - 1;
+        
+        synchronized (e) {
+            e.setTags(tags);
+            
+            if (n > 0) {
+                e.putInteger(0, a0);
+            }
+            
+            if (n > 1) {
+                e.putInteger(1, a1);
+            }
+            
+            if (n > 2) {
+                e.putInteger(2, a2);
+            }
+            
+            enqueue(e.packet());
+        }
+    }
+    
+    /**
+     * Holds a message until the next call to flushFrame(), replacing any held value for the same message. Messages are matched
+     * by address rather than by Encoder, so a message that has been compiled more than once is still held once. Events are
+     * added to the end of the frame and are never replaced.
+     * 
+     * @param e the Encoder for the message
+     * @param tags the type tag string
+     * @param a0 the first argument
+     * @param a1 the second argument
+     * @param a2 the third argument
+     * @param event true if every value of the message must be sent
+     */
+    private void hold(Encoder e, String tags, int a0, int a1, int a2, boolean event) {
+        // Contact messages are kept per Contact identifier
+        boolean keyed = tags == Encoder.INT_FLOAT || tags == Encoder.INT_FLOAT_FLOAT;
+        int key = keyed ? a0 : 0;
+        
+        synchronized (frameLock) {
+            int mask = frameIndex.length - 1;
+            int slot = (e.getAddress().hashCode()*31 + key) & mask;
+            
+            while (!event && frameIndex[slot] != 0) {
+                int i = frameIndex[slot] - 1;
+                
+                if (frameKeyed[i] == keyed && (!keyed || frameArguments[i*3] == key)
+                    && frameEncoders[i].getAddress().equals(e.getAddress())) {
+                    // Replace the superseded value
+                    frameEncoders[i] = e;
+                    frameTags[i] = tags;
+                    frameArguments[i*3] = a0;
+                    frameArguments[i*3 + 1] = a1;
+                    frameArguments[i*3 + 2] = a2;
+                    return;
+                }
+                
+                slot = (slot + 1) & mask;
+            }
+            
+            if (frameCount == frameEncoders.length) {
+                growFrame();
+                hold(e, tags, a0, a1, a2, event);
+                return;
+            }
+            
+            int i = frameCount;
+            frameEncoders[i] = e;
+            frameTags[i] = tags;
+            frameKeyed[i] = keyed;
+            frameEvents[i] = event;
+            frameArguments[i*3] = a0;
+            frameArguments[i*3 + 1] = a1;
+            frameArguments[i*3 + 2] = a2;
+            frameCount += 1;
+            
+            // Events are not indexed so that nothing replaces them
+            if (!event) {
+                frameIndex[slot] = i + 1;
+            }
+        }
+    }
+    
+    /**
+     * Doubles the room for held messages and rebuilds the index. This must be called while holding the frame lock.
+     */
+    private void growFrame() {
+        int size = frameEncoders.length*2;
+        
+        frameEncoders = Arrays.copyOf(frameEncoders, size);
+        frameTags = Arrays.copyOf(frameTags, size);
+        frameKeyed = Arrays.copyOf(frameKeyed, size);
+        frameEvents = Arrays.copyOf(frameEvents, size);
+        frameArguments = Arrays.copyOf(frameArguments, size*3);
+        frameIndex = new int[size*2];
+        
+        int mask = frameIndex.length - 1;
+        
+        for (int i = 0; i < frameCount; i++) {
+            if (frameEvents[i]) {
+                continue;
+            }
+            
+            int key = frameKeyed[i] ? frameArguments[i*3] : 0;
+            int slot = (frameEncoders[i].getAddress().hashCode()*31 + key) & mask;
+            
+            while (frameIndex[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            
+            frameIndex[slot] = i + 1;
+        }
+    }
+    
+    /**
+     * Starts collecting messages into a bundle. Messages sent by the calling thread are held until the matching call to
+     * {@link #flushBundle()} and then sent together as a single OSC bundle. Calls can be nested, in which case the bundle is sent
+     * when the outermost call is flushed. If another thread already has a bundle open, this call has no effect and messages sent
+     * by the calling thread are sent immediately.
+     */
+    public void beginBundle() {
+        synchronized (bundleLock) {
+            Thread current = Thread.currentThread();
+            
+            if (bundleOwner == null) {
+                bundleOwner = current;
+                bundle = null;
+                bundleCount = 0;
+                bundleDepth = 1;
+            }
+            else if (bundleOwner == current) {
+                bundleDepth += 1;
+            }
+        }
+    }
+    
+    /**
+     * Ends one level of bundling started by {@link #beginBundle()}. When the outermost level ends, all collected messages are
+     * sent as a single packet. A bundle containing only one message is sent as that message.
+     */
+    public void flushBundle() {
+        synchronized (bundleLock) {
+            if (bundleOwner != Thread.currentThread()) {
+                return;
+            }
+            
+            bundleDepth -= 1;
+            
+            if (bundleDepth == 0) {
+                submitBundle();
+                bundleOwner = null;
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the calling thread currently has a bundle open on this Relay.
+     * 
+     * @return true if bundling, false otherwise
+     */
+    public boolean isBundling() {
+        synchronized (bundleLock) {
+            return bundleOwner == Thread.currentThread();
+        }
+    }
+    
+    /**
+     * Stops the sender thread and closes the socket. Messages that are still queued are discarded and nothing more can be sent.
+     */
+    public void close() {
+        DatagramChannel c = channel;
+        channel = null;
+        
+        synchronized (senderLock) {
+            if (sender != null) {
+                sender.interrupt();
+                sender = null;
+            }
+            sendQueue.clear();
+        }
+        
+        if (c != null) {
+            try {
+                c.close();
+            }
+            catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+    
+    /**
+     * Returns the pre-encoded message for the specified address pattern, creating it if needed.
+     * 
+     * @param message the address pattern
+     * @return the Encoder for the message
+     */
+    Encoder getEncoder(String message) {
+        Encoder e = encoderMap.get(message);
+        
+        if (e == null) {
+            Encoder created = new Encoder(message);
+            e = encoderMap.putIfAbsent(message, created);
+            
+            if (e == null) {
+                e = created;
+            }
+        }
+        
+        return e;
+    }
+    
+    /**
+     * Queues a JavaOSC packet for the sender thread.
+     * 
+     * @param p the packet to send
+     */
+    private void enqueue(OSCPacket p) {
+        enqueue(ByteBuffer.wrap(p.getByteArray()));
+    }
+    
+    /**
+     * Queues the bytes between the position and limit of the specified buffer for the sender thread. If the calling thread has a
+     * bundle open, the bytes are added to the bundle instead. The bytes are copied, so the buffer can be reused straight away.
+     * 
+     * @param packet the encoded packet
+     */
+    private void enqueue(ByteBuffer packet) {
+        if (channel == null) {
+            return;
+        }
+        
+        int n = packet.remaining();
+        
+        if (n > MAX_DATAGRAM_SIZE - BUNDLE_HEADER_SIZE - 4) {
+            // Too large for a single datagram
+            droppedCount.incrementAndGet();
+            return;
+        }
+        
+        // Hold messages from the bundling thread until the bundle is flushed
+        synchronized (bundleLock) {
+            if (bundleOwner == Thread.currentThread()) {
+                // Start a new bundle if this message would not fit in the current one
+                if (bundle != null && bundle.data.position() + 4 + n > MAX_DATAGRAM_SIZE) {
+                    submitBundle();
+                }
+                
+                if (bundle == null) {
+                    bundle = acquire();
+                    
+                    if (bundle == null) {
+                        return;
+                    }
+                    
+                    bundle.data.put(BUNDLE_TAG);
+                    bundle.data.putLong(IMMEDIATELY);
+                }
+                
+                bundle.ensureRemaining(4 + n);
+                bundle.data.putInt(n);
+                bundle.data.put(packet);
+                bundleCount += 1;
+                return;
+            }
+        }
+        
+        Datagram d = acquire();
+        
+        if (d != null) {
+            d.ensureRemaining(n);
+            d.data.put(packet);
+            d.data.flip();
+            submit(d);
+        }
+    }
+    
+    /**
+     * Sends the open bundle, if it contains any messages. A bundle containing one message is sent as that message. This must be
+     * called while holding the bundle lock.
+     */
+    private void submitBundle() {
+        if (bundle != null) {
+            bundle.data.flip();
+            
+            if (bundleCount == 1) {
+                // Skip the bundle header and the element size
+                bundle.data.position(BUNDLE_HEADER_SIZE + 4);
+            }
+            
+            submit(bundle);
+            bundle = null;
+            bundleCount = 0;
+        }
+    }
+    
+    /**
+     * Returns a free datagram, applying the overflow policy if every datagram is waiting to be sent.
+     * 
+     * @return an empty datagram or null if the packet should be dropped
+     */
+    private Datagram acquire() {
+        Datagram d = freeQueue.poll();
+        
+        if (d != null) {
+            return d;
+        }
+        
+        // Create datagrams on demand until the capacity is reached
+        while (true) {
+            int count = datagramCount.get();
+            
+            if (count >= capacity) {
+                break;
+            }
+            
+            if (datagramCount.compareAndSet(count, count + 1)) {
+                return new Datagram();
+            }
+        }
+        
+        switch (overflow) {
+            case DROP_OLDEST:
+                // Reuse the oldest waiting datagram
+                d = sendQueue.poll();
+                
+                if (d != null) {
+                    droppedCount.incrementAndGet();
+                    d.data.clear();
+                    return d;
+                }
+                
+                // Every datagram is being sent or filled, so wait a short time for one to be released
+                try {
+                    d = freeQueue.poll(DROP_TIMEOUT);
+                }
+                catch (InterruptedException e) {
+                    // Preserve the interrupt for the caller
+                    Thread.currentThread().interrupt();
+                }
+                
+                if (d == null) {
+                    droppedCount.incrementAndGet();
+                }
+                
+                return d;
+            case DROP_NEWEST:
+                droppedCount.incrementAndGet();
+                return null;
+            case BLOCK:
+                startSender();
+                
+                try {
+                    return freeQueue.take();
+                }
+                catch (InterruptedException e) {
+                    // Preserve the interrupt for the caller and discard the packet
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return null;
+                }
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Queues a filled datagram for the sender thread and starts the sender thread if it is not running.
+     * 
+     * @param d the datagram to send
+     */
+    private void submit(Datagram d) {
+        // There are never more datagrams than the queue can hold
+        sendQueue.offer(d);
+        startSender();
+    }
+    
+    /**
+     * Starts the sender thread if it is not already running.
+     */
+    private void startSender() {
+        synchronized (senderLock) {
+            if (sender == null) {
+                sender = new Sender();
+                sender.start();
             }
         }
     }
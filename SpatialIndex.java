@@ -0,0 +1,316 @@
+package junctionbox;
+
+import java.util.List;
+
+/**
+ * The SpatialIndex class is a uniform grid over the touch area of a Dispatcher that finds the topmost Junction under a point
+ * without testing every Junction. Each Junction is binned into the cells covered by the bounding box of itself and its
+ * subjunctions, and each cell keeps its Junctions in z-order so that a lookup only tests the few Junctions that share a cell
+ * with the point, from top to bottom.
+ * 
+ * <p>Junctions report changes to their geometry with {@link #invalidate(Junction)} and are binned again on the next lookup.
+ * Changes to the list itself, such as adding, removing or reordering Junctions, call {@link #invalidate()} and the whole grid
+ * is rebuilt on the next lookup.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class SpatialIndex {
+    /**
+     * The number of grid cells along each axis.
+     */
+    private static final int CELLS = 32;
+    
+    /**
+     * The initial capacity of each cell.
+     */
+    private static final int CELL_CAPACITY = 4;
+    
+    /**
+     * The list of Junctions in z-order, with the topmost Junction last.
+     */
+    private final List<Junction> junctionList;
+    
+    /**
+     * The width of a grid cell.
+     */
+    private final float cellWidth;
+    
+    /**
+     * The height of a grid cell.
+     */
+    private final float cellHeight;
+    
+    /**
+     * The Junctions in z-order as of the last rebuild.
+     */
+    private Junction[] junctions = new Junction[0];
+    
+    /**
+     * The bounding box of each Junction as min x, min y, max x and max y.
+     */
+    private float[] bounds = new float[0];
+    
+    /**
+     * The range of cells covered by each Junction as first column, first row, last column and last row.
+     */
+    private int[] ranges = new int[0];
+    
+    /**
+     * The slots of the Junctions in each cell in ascending z-order.
+     */
+    private final int[][] cells;
+    
+    /**
+     * The number of Junctions in each cell.
+     */
+    private final int[] cellSizes;
+    
+    /**
+     * Flags for Junctions that need to be binned again.
+     */
+    private boolean[] dirty = new boolean[0];
+    
+    /**
+     * The slots of Junctions that need to be binned again.
+     */
+    private int[] dirtySlots = new int[0];
+    
+    /**
+     * The number of Junctions that need to be binned again.
+     */
+    private int dirtyCount = 0;
+    
+    /**
+     * Whether the whole grid needs to be rebuilt.
+     */
+    private boolean stale = true;
+    
+    /**
+     * Constructs a new SpatialIndex over the specified list of Junctions.
+     * 
+     * @param list the list of Junctions in z-order
+     * @param w the width of the touch area
+     * @param h the height of the touch area
+     */
+    SpatialIndex(List<Junction> list, float w, float h) {
+        junctionList = list;
+        cellWidth = (w > 0 ? w : 1.0f)/CELLS;
+        cellHeight = (h > 0 ? h : 1.0f)/CELLS;
+        cells = new int[CELLS*CELLS][];
+        cellSizes = new int[CELLS*CELLS];
+        
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new int[CELL_CAPACITY];
+        }
+    }
+    
+    /**
+     * Marks the whole grid for rebuilding after the list of Junctions has changed.
+     */
+    synchronized void invalidate() {
+        stale = true;
+    }
+    
+    /**
+     * Marks the specified top-level Junction for binning again after its geometry has changed.
+     * 
+     * @param j the Junction that has changed
+     */
+    synchronized void invalidate(Junction j) {
+        if (!stale) {
+            int slot = j.indexSlot;
+            
+            if (slot >= 0 && slot < junctions.length && junctions[slot] == j && !dirty[slot]) {
+                dirty[slot] = true;
+                dirtySlots[dirtyCount++] = slot;
+            }
+        }
+    }
+    
+    /**
+     * Returns the topmost live Junction that contains the specified point.
+     * 
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the Junction or null if no Junction contains the point
+     */
+    synchronized Junction find(float x, float y) {
+        if (stale) {
+            rebuild();
+        }
+        else {
+            while (dirtyCount > 0) {
+                int slot = dirtySlots[--dirtyCount];
+                dirty[slot] = false;
+                unbin(slot);
+                bin(slot);
+            }
+        }
+        
+        int cell = row(y)*CELLS + column(x);
+        int[] candidates = cells[cell];
+        
+        for (int i = cellSizes[cell] - 1; i >= 0; i--) {
+            int slot = candidates[i];
+            int b = slot*4;
+            
+            if (x >= bounds[b] && x <= bounds[b+2] && y >= bounds[b+1] && y <= bounds[b+3]) {
+                Junction j = junctions[slot];
+                
+                if (j.isLive() && j.inside(x, y)) {
+                    return j;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Rebuilds the whole grid from the current list of Junctions.
+     */
+    private void rebuild() {
+        for (Junction j : junctions) {
+            if (j.index == this) {
+                j.index = null;
+            }
+        }
+        
+        junctions = junctionList.toArray(new Junction[0]);
+        int n = junctions.length;
+        
+        if (bounds.length < n*4) {
+            bounds = new float[n*4];
+            ranges = new int[n*4];
+            dirty = new boolean[n];
+            dirtySlots = new int[n];
+        }
+        
+        for (int i = 0; i < cellSizes.length; i++) {
+            cellSizes[i] = 0;
+        }
+        
+        for (int i = 0; i < n; i++) {
+            junctions[i].index = this;
+            junctions[i].indexSlot = i;
+            dirty[i] = false;
+            bin(i);
+        }
+        
+        dirtyCount = 0;
+        stale = false;
+    }
+    
+    /**
+     * Computes the bounding box of the Junction in the specified slot and adds the slot to each cell that the box covers.
+     * 
+     * @param slot the slot of the Junction
+     */
+    private void bin(int slot) {
+        int b = slot*4;
+        bounds[b] = Float.POSITIVE_INFINITY;
+        bounds[b+1] = Float.POSITIVE_INFINITY;
+        bounds[b+2] = Float.NEGATIVE_INFINITY;
+        bounds[b+3] = Float.NEGATIVE_INFINITY;
+        junctions[slot].includeBounds(bounds, b);
+        
+        int c0 = column(bounds[b]);
+        int r0 = row(bounds[b+1]);
+        int c1 = column(bounds[b+2]);
+        int r1 = row(bounds[b+3]);
+        ranges[b] = c0;
+        ranges[b+1] = r0;
+        ranges[b+2] = c1;
+        ranges[b+3] = r1;
+        
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r*CELLS + c;
+                int size = cellSizes[cell];
+                int[] slots = cells[cell];
+                
+                if (size == slots.length) {
+                    int[] grown = new int[size*2];
+                    System.arraycopy(slots, 0, grown, 0, size);
+                    cells[cell] = grown;
+                    slots = grown;
+                }
+                
+                // Keep the cell in z-order
+                int i = size;
+                
+                while (i > 0 && slots[i-1] > slot) {
+                    slots[i] = slots[i-1];
+                    i--;
+                }
+                
+                slots[i] = slot;
+                cellSizes[cell] = size + 1;
+            }
+        }
+    }
+    
+    /**
+     * Removes the slot of a Junction from each cell that it was last binned into.
+     * 
+     * @param slot the slot of the Junction
+     */
+    private void unbin(int slot) {
+        int b = slot*4;
+        
+        for (int r = ranges[b+1]; r <= ranges[b+3]; r++) {
+            for (int c = ranges[b]; c <= ranges[b+2]; c++) {
+                int cell = r*CELLS + c;
+                int size = cellSizes[cell];
+                int[] slots = cells[cell];
+                
+                for (int i = 0; i < size; i++) {
+                    if (slots[i] == slot) {
+                        System.arraycopy(slots, i+1, slots, i, size - i - 1);
+                        cellSizes[cell] = size - 1;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the grid column for the specified x coordinate, clamped to the grid.
+     * 
+     * @param x the x coordinate
+     * @return the column
+     */
+    private int column(float x) {
+        return clamp(x/cellWidth);
+    }
+    
+    /**
+     * Returns the grid row for the specified y coordinate, clamped to the grid.
+     * 
+     * @param y the y coordinate
+     * @return the row
+     */
+    private int row(float y) {
+        return clamp(y/cellHeight);
+    }
+    
+    /**
+     * Clamps a grid coordinate to the range of cells.
+     * 
+     * @param f the unclamped grid coordinate
+     * @return the cell coordinate
+     */
+    private static int clamp(float f) {
+        if (f <= 0 || f != f) {
+            return 0;
+        }
+        else if (f >= CELLS - 1) {
+            return CELLS - 1;
+        }
+        else {
+            return (int)f;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package junctionbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SpillLog class writes the events of a Take to an append-only recording file while they are recorded, so that a long
+ * recording uses a fixed amount of memory. Events are written into a small set of buffers that are reused, and a background
+ * thread appends each full buffer to the file. Recording an event never waits on the disk: if the disk falls behind by every
+ * buffer, events are dropped and counted instead of stalling input.
+ * 
+ * <p>The writer also appends a partly filled buffer once no full buffer has arrived for {@link #FLUSH_INTERVAL} milliseconds,
+ * so if the application crashes the file holds every event except those recorded during roughly the last flush interval, and
+ * any buffers that a slow disk had not yet taken. Events that the operating system has not written to the disk yet can still
+ * be lost if the machine itself fails.</p>
+ * 
+ * <p>The file is in the binary recording format with a single Take. Its event count is left open while recording and filled in
+ * when the log is closed, and a file that was never closed is read up to its last complete event.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class SpillLog {
+    /**
+     * The number of events in each buffer.
+     */
+    private static final int BUFFER_EVENTS = 4096;
+    
+    /**
+     * The number of buffers.
+     */
+    private static final int BUFFER_COUNT = 4;
+    
+    /**
+     * The number of milliseconds that the writer waits for a full buffer before it writes the partly filled one.
+     */
+    static final long FLUSH_INTERVAL = 100;
+    
+    /**
+     * The buffer that tells the writer thread to stop.
+     */
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+    
+    /**
+     * The file being written.
+     */
+    private final RandomAccessFile raf;
+    
+    /**
+     * The channel of the file being written.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Empty buffers that are ready for events.
+     */
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+    
+    /**
+     * Full buffers waiting to be written.
+     */
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT + 1);
+    
+    /**
+     * The thread that writes full buffers to the file.
+     */
+    private final Thread writer;
+    
+    /**
+     * The buffer that holds the most recent events, or null if every buffer was waiting to be written when the last one filled.
+     */
+    private ByteBuffer tail;
+    
+    /**
+     * The number of events logged.
+     */
+    private volatile int size = 0;
+    
+    /**
+     * The number of events dropped because every buffer was waiting to be written.
+     */
+    private volatile int droppedCount = 0;
+    
+    /**
+     * Whether the log has been closed.
+     */
+    private boolean closed = false;
+    
+    /**
+     * The first error from writing the file, or null.
+     */
+    private volatile IOException failure;
+    
+    /**
+     * Constructs a new SpillLog that writes to the specified file, replacing anything already in it.
+     * 
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    SpillLog(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        
+        try {
+            raf.setLength(0);
+            channel = raf.getChannel();
+            
+            ByteBuffer header = RecordingFile.openLogHeader();
+            
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_EVENTS*EventStore.RECORD_SIZE));
+        }
+        
+        tail = free.poll();
+        
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "junctionbox-spill");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Appends an event, or drops it if every buffer is waiting to be written.
+     * 
+     * @param type the event type
+     * @param id the Contact identifier
+     * @param x the x value
+     * @param y the y value
+     * @param delay the delay in nanoseconds
+     */
+    synchronized void add(int type, int id, float x, float y, long delay) {
+        if (closed) {
+            return;
+        }
+        
+        if (tail == null) {
+            tail = free.poll();
+            
+            if (tail == null) {
+                droppedCount++;
+                return;
+            }
+        }
+        
+        tail.put((byte)type).putInt(id).putFloat(x).putFloat(y).putLong(delay);
+        size++;
+        
+        if (!tail.hasRemaining()) {
+            // There is always room, since the queue holds every buffer
+            full.offer(tail);
+            tail = free.poll();
+        }
+    }
+    
+    /**
+     * Returns the number of events logged.
+     * 
+     * @return the event count
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of events dropped because the disk fell behind.
+     * 
+     * @return the dropped event count
+     */
+    int getDroppedCount() {
+        return droppedCount;
+    }
+    
+    /**
+     * Writes the remaining events, fills in the event count and closes the file.
+     * 
+     * @throws IOException if any events could not be written
+     */
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        
+        closed = true;
+        
+        if (tail != null && tail.position() > 0) {
+            put(full, tail);
+        }
+        
+        put(full, CLOSE);
+        
+        boolean interrupted = false;
+        
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        try {
+            if (failure == null) {
+                ByteBuffer count = ByteBuffer.allocate(4);
+                count.putInt(0, size);
+                channel.write(count, RecordingFile.HEADER_SIZE);
+                channel.force(false);
+            }
+        }
+        finally {
+            raf.close();
+            
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    /**
+     * Writes full buffers to the file until the log is closed, and the partly filled buffer whenever no full buffer arrives in
+     * time.
+     */
+    private void drain() {
+        while (true) {
+            ByteBuffer b = null;
+            
+            try {
+                b = full.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                // Do nothing
+            }
+            
+            if (b == null) {
+                b = swapTail();
+                
+                if (b == null) {
+                    continue;
+                }
+            }
+            
+            if (b == CLOSE) {
+                return;
+            }
+            
+            b.flip();
+            
+            try {
+                while (b.hasRemaining() && failure == null) {
+                    channel.write(b);
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            
+            b.clear();
+            free.add(b);
+        }
+    }
+    
+    /**
+     * Adds a buffer to a queue, waiting for space without giving up if the thread is interrupted.
+     * 
+     * @param queue the queue
+     * @param b the buffer
+     */
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer b) {
+        boolean interrupted = false;
+        
+        while (true) {
+            try {
+                queue.put(b);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Replaces the partly filled buffer with an empty one so that its events can be written.
+     * 
+     * @return the partly filled buffer, or null if it is empty, there is no empty buffer or a full buffer is waiting
+     */
+    private synchronized ByteBuffer swapTail() {
+        // Full buffers hold earlier events, so they must be written first
+        if (closed || tail == null || tail.position() == 0 || !full.isEmpty()) {
+            return null;
+        }
+        
+        ByteBuffer fresh = free.poll();
+        
+        if (fresh == null) {
+            return null;
+        }
+        
+        ByteBuffer b = tail;
+        tail = fresh;
+        
+        return b;
+    }
+}
@@ -0,0 +1,403 @@
+package junctionbox;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Take class is a single recording of Contact events made by a Dispatcher. Takes are layered: each call to
+ * {@link Dispatcher#startRecording()} adds a new Take on top of the existing ones, and playback plays all Takes at once.
+ * Each Take has its own clock, so it can loop with its own length, play at its own rate and be muted without affecting the
+ * others. All Takes are played by a single scheduler thread in the Dispatcher.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+public class Take {
+    /**
+     * The identifier of this Take.
+     */
+    private final int id;
+    
+    /**
+     * The recorded events.
+     */
+    final EventStore events;
+    
+    /**
+     * The playback rate, where 1 is the recorded speed.
+     */
+    private volatile double rate = 1.0;
+    
+    /**
+     * Determines whether this Take is muted.
+     */
+    private volatile boolean muted = false;
+    
+    /**
+     * Determines whether this Take is soloed, which is set through {@link Dispatcher#setSolo(int, boolean)}.
+     */
+    volatile boolean soloed = false;
+    
+    /**
+     * The loop length in nanoseconds, or 0 to loop at the end of the last event.
+     */
+    volatile long loopLength = 0;
+    
+    /**
+     * The index of the next event to play.
+     */
+    int cursor;
+    
+    /**
+     * The nanosecond tick at which the current pass through this Take started.
+     */
+    long loopStart;
+    
+    /**
+     * The rate at which the current pass is played, which is the rate of this Take times the playback rate of the Dispatcher.
+     */
+    double loopRate;
+    
+    /**
+     * The loop length used for the current pass.
+     */
+    long passLength;
+    
+    /**
+     * Whether this Take has finished playing.
+     */
+    boolean done;
+    
+    /**
+     * The recorded identifiers of Contacts from this Take that are currently down.
+     */
+    private int[] recordedIDs = new int[8];
+    
+    /**
+     * The identifiers used for playback of Contacts from this Take that are currently down.
+     */
+    private int[] playbackIDs = new int[8];
+    
+    /**
+     * The number of Contacts from this Take that are currently down.
+     */
+    private int downCount = 0;
+    
+    /**
+     * The time index for seeking, or null if it has not been built.
+     */
+    private TimeIndex timeIndex;
+    
+    /**
+     * The thread playing this Take, which is woken up when the rate changes, or null if it is not being played.
+     */
+    volatile Thread player;
+    
+    /**
+     * Constructs a new Take with the specified identifier.
+     * 
+     * @param id the identifier
+     */
+    Take(int id) {
+        this(id, new EventStore());
+    }
+    
+    /**
+     * Constructs a new Take with the specified identifier and events.
+     * 
+     * @param id the identifier
+     * @param events the events
+     */
+    Take(int id, EventStore events) {
+        this.id = id;
+        this.events = events;
+    }
+    
+    /**
+     * Returns the identifier of this Take.
+     * 
+     * @return the identifier
+     */
+    public int getID() {
+        return id;
+    }
+    
+    /**
+     * Returns the number of events in this Take.
+     * 
+     * @return the event count
+     */
+    public int getEventCount() {
+        return events.size();
+    }
+    
+    /**
+     * Returns the time of the last event in this Take.
+     * 
+     * @return the duration in nanoseconds
+     */
+    public long getDuration() {
+        return events.getLastDelay();
+    }
+    
+    /**
+     * Sets the playback rate of this Take. A rate of 2 plays twice as fast as recorded and a rate of 0.5 plays at half speed.
+     * A new rate takes effect immediately, carrying on from the current place in the Take. Rates that are not positive are
+     * ignored.
+     * 
+     * @param r the rate
+     */
+    public void setRate(double r) {
+        if (r > 0) {
+            rate = r;
+            
+            Thread p = player;
+            
+            if (p != null) {
+                LockSupport.unpark(p);
+            }
+        }
+    }
+    
+    /**
+     * Returns the playback rate of this Take.
+     * 
+     * @return the rate
+     */
+    public double getRate() {
+        return rate;
+    }
+    
+    /**
+     * Mutes or unmutes this Take. A muted Take keeps its place in time so that it stays in step with the other Takes when it is
+     * unmuted. Contacts from this Take that are down when it is muted are removed.
+     * 
+     * @param m true to mute, false to unmute
+     */
+    public void setMuted(boolean m) {
+        muted = m;
+    }
+    
+    /**
+     * Returns true if this Take is muted.
+     * 
+     * @return true if muted, false otherwise
+     */
+    public boolean isMuted() {
+        return muted;
+    }
+    
+    /**
+     * Returns true if this Take is soloed.
+     * 
+     * @return true if soloed, false otherwise
+     */
+    public boolean isSoloed() {
+        return soloed;
+    }
+    
+    /**
+     * Sets the loop length of this Take in nanoseconds of recorded time. Events after the loop length are not played. A loop
+     * length of 0, which is the default, loops at the last event. A new loop length takes effect at the start of the next loop.
+     * 
+     * @param nanos the loop length
+     */
+    public void setLoopLength(long nanos) {
+        loopLength = Math.max(nanos, 0);
+    }
+    
+    /**
+     * Returns the loop length of this Take in nanoseconds of recorded time.
+     * 
+     * @return the loop length
+     */
+    public long getLoopLength() {
+        long l = loopLength;
+        
+        return l > 0 ? l : getDuration();
+    }
+    
+    /**
+     * Starts a pass through this Take at the specified tick.
+     * 
+     * @param tick the nanosecond tick at which the pass starts
+     * @param playbackRate the playback rate of the Dispatcher
+     */
+    void startPass(long tick, double playbackRate) {
+        cursor = 0;
+        loopStart = tick;
+        loopRate = rate*playbackRate;
+        passLength = getLoopLength();
+        done = false;
+    }
+    
+    /**
+     * Moves the current pass to the specified time since the start of playback. With looping, the time wraps around the loop
+     * length. The Contacts that are down at that time are not restored; see {@link #getDownAtCursor()}.
+     * 
+     * @param tick the current nanosecond tick
+     * @param position the time since the start of playback in nanoseconds at a playback rate of 1
+     * @param looping whether playback is looping
+     * @param playbackRate the playback rate of the Dispatcher
+     */
+    void seek(long tick, long position, boolean looping, double playbackRate) {
+        loopRate = rate*playbackRate;
+        passLength = getLoopLength();
+        
+        // Convert playback time into recorded time
+        double recorded = position*rate;
+        long offset;
+        
+        if (looping && passLength > 0) {
+            offset = (long)(recorded % passLength);
+        }
+        else {
+            offset = (long)Math.min(recorded, Long.MAX_VALUE);
+        }
+        
+        loopStart = tick - (long)(offset/loopRate);
+        cursor = getTimeIndex().find(events, offset);
+        done = !looping && offset > passLength;
+    }
+    
+    /**
+     * Changes the rate of the current pass at the specified tick, keeping the place in recorded time that the pass has reached.
+     * 
+     * @param tick the current nanosecond tick
+     * @param r the new rate
+     */
+    void setPassRate(long tick, double r) {
+        double offset = (tick - loopStart)*loopRate;
+        loopStart = tick - (long)(offset/r);
+        loopRate = r;
+    }
+    
+    /**
+     * Returns the Contacts of this Take that are down just before the next event.
+     * 
+     * @return the Contacts that are down
+     */
+    TimeIndex.State getDownAtCursor() {
+        return getTimeIndex().restore(events, cursor);
+    }
+    
+    /**
+     * Returns the time index of this Take, building it if the events have changed since it was last built. The events must be
+     * in order of delay.
+     * 
+     * @return the time index
+     */
+    private TimeIndex getTimeIndex() {
+        TimeIndex index = timeIndex;
+        
+        if (index == null || index.size != events.size() || index.changes != events.getChanges()) {
+            index = new TimeIndex(events);
+            timeIndex = index;
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Returns true if the current pass has events left to play.
+     * 
+     * @return true if there is a next event
+     */
+    boolean hasNext() {
+        return cursor < events.size() && events.getDelay(cursor) <= passLength;
+    }
+    
+    /**
+     * Returns the tick at which the next event is due, or at which the current pass ends if there are no events left.
+     * 
+     * @return the nanosecond tick
+     */
+    long nextDeadline() {
+        long delay = hasNext() ? events.getDelay(cursor) : passLength;
+        
+        return loopStart + (long)(delay/loopRate);
+    }
+    
+    /**
+     * Records that a Contact from this Take is down with the specified playback identifier.
+     * 
+     * @param recorded the recorded identifier
+     * @param playback the identifier used for playback
+     */
+    void bind(int recorded, int playback) {
+        if (downCount == recordedIDs.length) {
+            int[] grownRecorded = new int[downCount*2];
+            int[] grownPlayback = new int[downCount*2];
+            System.arraycopy(recordedIDs, 0, grownRecorded, 0, downCount);
+            System.arraycopy(playbackIDs, 0, grownPlayback, 0, downCount);
+            recordedIDs = grownRecorded;
+            playbackIDs = grownPlayback;
+        }
+        
+        recordedIDs[downCount] = recorded;
+        playbackIDs[downCount] = playback;
+        downCount++;
+    }
+    
+    /**
+     * Returns the playback identifier for a Contact from this Take that is down.
+     * 
+     * @param recorded the recorded identifier
+     * @return the playback identifier or 0 if the Contact is not down
+     */
+    int lookup(int recorded) {
+        for (int i = 0; i < downCount; i++) {
+            if (recordedIDs[i] == recorded) {
+                return playbackIDs[i];
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Forgets a Contact from this Take that has been removed.
+     * 
+     * @param recorded the recorded identifier
+     * @return the playback identifier or 0 if the Contact was not down
+     */
+    int unbind(int recorded) {
+        for (int i = 0; i < downCount; i++) {
+            if (recordedIDs[i] == recorded) {
+                int playback = playbackIDs[i];
+                downCount--;
+                recordedIDs[i] = recordedIDs[downCount];
+                playbackIDs[i] = playbackIDs[downCount];
+                
+                return playback;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Returns the number of Contacts from this Take that are down.
+     * 
+     * @return the Contact count
+     */
+    int getDownCount() {
+        return downCount;
+    }
+    
+    /**
+     * Returns the playback identifier of the Contact that is down at the specified position.
+     * 
+     * @param i the position
+     * @return the playback identifier
+     */
+    int getDownID(int i) {
+        return playbackIDs[i];
+    }
+    
+    /**
+     * Forgets all Contacts from this Take that are down.
+     */
+    void unbindAll() {
+        downCount = 0;
+    }
+}
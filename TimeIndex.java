@@ -0,0 +1,260 @@
+package junctionbox;
+
+/**
+ * The TimeIndex class is a sparse index over the events of a Take that allows playback to start at any time without replaying
+ * the events before it. Every {@link #INTERVAL} events it keeps a keyframe of the Contacts that are down at that point, so the
+ * Contacts that are down at any event are found by restoring the nearest keyframe before it and replaying at most one interval of
+ * events. Events are found by time with a binary search, since the events are in order of delay.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class TimeIndex {
+    /**
+     * The number of events between keyframes.
+     */
+    static final int INTERVAL = 1024;
+    
+    /**
+     * The start of each keyframe in the keyframe arrays, with one extra entry for the end of the last keyframe.
+     */
+    private final int[] offsets;
+    
+    /**
+     * The recorded identifiers of the Contacts in all keyframes.
+     */
+    private final int[] ids;
+    
+    /**
+     * The x values of the Contacts in all keyframes.
+     */
+    private final float[] xs;
+    
+    /**
+     * The y values of the Contacts in all keyframes.
+     */
+    private final float[] ys;
+    
+    /**
+     * The number of events indexed.
+     */
+    final int size;
+    
+    /**
+     * The change count of the events when they were indexed.
+     */
+    final int changes;
+    
+    /**
+     * The Contacts that are down at one point in a Take.
+     */
+    static final class State {
+        /**
+         * The recorded identifier of each Contact.
+         */
+        int[] ids = new int[8];
+        
+        /**
+         * The x value of each Contact.
+         */
+        float[] xs = new float[8];
+        
+        /**
+         * The y value of each Contact.
+         */
+        float[] ys = new float[8];
+        
+        /**
+         * The number of Contacts.
+         */
+        int count = 0;
+        
+        /**
+         * Applies an event.
+         * 
+         * @param events the events
+         * @param i the index of the event
+         */
+        void apply(EventStore events, int i) {
+            int type = events.getType(i);
+            int id = events.getID(i);
+            
+            if (type == EventStore.REMOVE) {
+                remove(id);
+            }
+            else if (type == EventStore.ADD || indexOf(id) >= 0) {
+                put(id, events.getX(i), events.getY(i));
+            }
+        }
+        
+        /**
+         * Adds a Contact or moves it if it is already down.
+         * 
+         * @param id the recorded identifier
+         * @param x the x value
+         * @param y the y value
+         */
+        void put(int id, float x, float y) {
+            int slot = indexOf(id);
+            
+            if (slot < 0) {
+                if (count == ids.length) {
+                    int[] grownIDs = new int[count*2];
+                    float[] grownXs = new float[count*2];
+                    float[] grownYs = new float[count*2];
+                    System.arraycopy(ids, 0, grownIDs, 0, count);
+                    System.arraycopy(xs, 0, grownXs, 0, count);
+                    System.arraycopy(ys, 0, grownYs, 0, count);
+                    ids = grownIDs;
+                    xs = grownXs;
+                    ys = grownYs;
+                }
+                
+                slot = count++;
+                ids[slot] = id;
+            }
+            
+            xs[slot] = x;
+            ys[slot] = y;
+        }
+        
+        /**
+         * Removes a Contact.
+         * 
+         * @param id the recorded identifier
+         */
+        void remove(int id) {
+            int slot = indexOf(id);
+            
+            if (slot >= 0) {
+                count--;
+                ids[slot] = ids[count];
+                xs[slot] = xs[count];
+                ys[slot] = ys[count];
+            }
+        }
+        
+        /**
+         * Returns the slot of a Contact.
+         * 
+         * @param id the recorded identifier
+         * @return the slot or -1 if the Contact is not down
+         */
+        private int indexOf(int id) {
+            for (int slot = 0; slot < count; slot++) {
+                if (ids[slot] == id) {
+                    return slot;
+                }
+            }
+            
+            return -1;
+        }
+    }
+    
+    /**
+     * Constructs a new TimeIndex over the specified events, which must be in order of delay.
+     * 
+     * @param events the events
+     */
+    TimeIndex(EventStore events) {
+        size = events.size();
+        changes = events.getChanges();
+        
+        int keyframes = (size + INTERVAL - 1)/INTERVAL;
+        offsets = new int[keyframes + 1];
+        
+        State state = new State();
+        int[] keyIDs = new int[Math.max(keyframes, 8)];
+        float[] keyXs = new float[keyIDs.length];
+        float[] keyYs = new float[keyIDs.length];
+        int used = 0;
+        
+        for (int k = 0; k < keyframes; k++) {
+            // Keep the Contacts that are down before the first event of the keyframe
+            offsets[k] = used;
+            
+            if (used + state.count > keyIDs.length) {
+                int length = Math.max(keyIDs.length*2, used + state.count);
+                int[] grownIDs = new int[length];
+                float[] grownXs = new float[length];
+                float[] grownYs = new float[length];
+                System.arraycopy(keyIDs, 0, grownIDs, 0, used);
+                System.arraycopy(keyXs, 0, grownXs, 0, used);
+                System.arraycopy(keyYs, 0, grownYs, 0, used);
+                keyIDs = grownIDs;
+                keyXs = grownXs;
+                keyYs = grownYs;
+            }
+            
+            System.arraycopy(state.ids, 0, keyIDs, used, state.count);
+            System.arraycopy(state.xs, 0, keyXs, used, state.count);
+            System.arraycopy(state.ys, 0, keyYs, used, state.count);
+            used += state.count;
+            
+            int end = Math.min((k + 1)*INTERVAL, size);
+            
+            for (int i = k*INTERVAL; i < end; i++) {
+                state.apply(events, i);
+            }
+        }
+        
+        offsets[keyframes] = used;
+        ids = keyIDs;
+        xs = keyXs;
+        ys = keyYs;
+    }
+    
+    /**
+     * Returns the index of the first event at or after the specified delay.
+     * 
+     * @param events the indexed events
+     * @param delay the delay in nanoseconds
+     * @return the index of the event, or the event count if every event is earlier
+     */
+    int find(EventStore events, long delay) {
+        int low = 0;
+        int high = size;
+        
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            
+            if (events.getDelay(mid) < delay) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Returns the Contacts that are down just before the specified event.
+     * 
+     * @param events the indexed events
+     * @param index the index of the event
+     * @return the Contacts that are down
+     */
+    State restore(EventStore events, int index) {
+        State state = new State();
+        int end = Math.min(index, size);
+        
+        if (end <= 0) {
+            return state;
+        }
+        
+        // The keyframe at or before the event
+        int k = Math.min(end/INTERVAL, offsets.length - 2);
+        
+        for (int j = offsets[k]; j < offsets[k+1]; j++) {
+            state.put(ids[j], xs[j], ys[j]);
+        }
+        
+        for (int i = k*INTERVAL; i < end; i++) {
+            state.apply(events, i);
+        }
+        
+        return state;
+    }
+}
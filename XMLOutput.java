@@ -0,0 +1,102 @@
+package junctionbox;
+
+import java.io.OutputStream;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * The XMLOutput class writes an XML document to a stream as it is produced, so saving never holds more than the element being
+ * written. Elements are passed as SAX events to an identity transformer, which is available on both Java SE and Android.
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class XMLOutput {
+    /**
+     * The empty attribute list shared by all elements.
+     */
+    private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+    
+    /**
+     * The transformer that serializes SAX events to the stream.
+     */
+    private final TransformerHandler handler;
+    
+    /**
+     * A buffer for element text that is reused to avoid allocations.
+     */
+    private char[] textBuffer = new char[64];
+    
+    /**
+     * Constructs a new XMLOutput and starts a document on the specified stream.
+     * 
+     * @param output the stream to write to
+     * @throws TransformerConfigurationException if the platform has no SAX transformer
+     * @throws SAXException if the document cannot be started
+     */
+    XMLOutput(OutputStream output) throws TransformerConfigurationException, SAXException {
+        SAXTransformerFactory factory = (SAXTransformerFactory)TransformerFactory.newInstance();
+        handler = factory.newTransformerHandler();
+        
+        // Each tag on its own line
+        handler.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
+        handler.setResult(new StreamResult(output));
+        handler.startDocument();
+    }
+    
+    /**
+     * Starts an element.
+     * 
+     * @param name the element name
+     * @throws SAXException if the element cannot be written
+     */
+    void start(String name) throws SAXException {
+        handler.startElement("", name, name, NO_ATTRIBUTES);
+    }
+    
+    /**
+     * Ends an element.
+     * 
+     * @param name the element name
+     * @throws SAXException if the element cannot be written
+     */
+    void end(String name) throws SAXException {
+        handler.endElement("", name, name);
+    }
+    
+    /**
+     * Writes an element that contains only text.
+     * 
+     * @param name the element name
+     * @param text the text
+     * @throws SAXException if the element cannot be written
+     */
+    void element(String name, String text) throws SAXException {
+        int length = text.length();
+        
+        if (length > textBuffer.length) {
+            textBuffer = new char[Math.max(length, textBuffer.length*2)];
+        }
+        
+        text.getChars(0, length, textBuffer, 0);
+        
+        start(name);
+        handler.characters(textBuffer, 0, length);
+        end(name);
+    }
+    
+    /**
+     * Ends the document and flushes it to the stream.
+     * 
+     * @throws SAXException if the document cannot be written
+     */
+    void finish() throws SAXException {
+        handler.endDocument();
+    }
+}
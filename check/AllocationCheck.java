@@ -0,0 +1,274 @@
+package junctionbox;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The AllocationCheck class checks that sending messages does not allocate once the toolkit has warmed up. It sends every kind
+ * of typed message, bundle and coalesced frame straight through a Relay, and then sends touches through a Dispatcher to a
+ * Junction with every action mapped, so that the whole path from a Contact to a packet is covered. Both go to a socket on the
+ * loopback interface with each overflow policy, and the bytes allocated by the sending thread and the sender thread of the
+ * Relay are counted.
+ * 
+ * <p>The check is kept out of the toolkit sources and is not part of the library. Build it against the toolkit classes with
+ * <code>javac -cp &lt;toolkit classes&gt; check/AllocationCheck.java</code> and run it with
+ * <code>java junctionbox.AllocationCheck</code> on a HotSpot JVM; it exits with status 1 if any bytes were allocated. The bytes
+ * are counted with the per-thread counters of com.sun.management.ThreadMXBean, which is found by reflection.</p>
+ * 
+ * @author Lawrence Fyfe
+ * @version 0.99
+ */
+final class AllocationCheck {
+    /**
+     * The number of rounds sent before counting, so that every datagram has been created and the sending code is compiled.
+     */
+    private static final int WARMUP_ROUNDS = 5;
+    
+    /**
+     * The number of rounds that are counted.
+     */
+    private static final int COUNTED_ROUNDS = 2;
+    
+    /**
+     * The number of iterations in a round. Each iteration sends nine messages or makes two touches.
+     */
+    private static final int ITERATIONS = 100000;
+    
+    /**
+     * The first Contact identifier, which is outside the range of cached Integers as TUIO session identifiers usually are.
+     */
+    private static final int FIRST_ID = 100000;
+    
+    /**
+     * The JVM's ThreadMXBean.
+     */
+    private final Object threads;
+    
+    /**
+     * The getThreadAllocatedBytes(long[]) method of com.sun.management.ThreadMXBean.
+     */
+    private final Method allocatedBytes;
+    
+    /**
+     * The bytes that one call to {@link #allocated(long[])} allocates in the calling thread, which are left out of the count.
+     */
+    private long probeBytes = 0;
+    
+    /**
+     * Constructs a new AllocationCheck.
+     * 
+     * @throws Exception if the JVM cannot count allocated bytes per thread
+     */
+    private AllocationCheck() throws Exception {
+        threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+        allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long[].class);
+        
+        // Let reflection settle before measuring what a call for two threads costs
+        long id = Thread.currentThread().getId();
+        long[] pair = {id, id};
+        
+        for (int i = 0; i < 100; i++) {
+            allocated(pair);
+        }
+        
+        long[] before = allocated(pair);
+        long[] after = allocated(pair);
+        probeBytes = after[0] - before[0];
+    }
+    
+    /**
+     * Returns the bytes allocated so far by each of the specified threads.
+     * 
+     * @param ids the thread identifiers
+     * @return the allocated bytes of each thread
+     * @throws Exception if the bytes cannot be read
+     */
+    private long[] allocated(long[] ids) throws Exception {
+        return (long[])allocatedBytes.invoke(threads, (Object)ids);
+    }
+    
+    /**
+     * Sends one round of typed messages, bundles and coalesced frames.
+     * 
+     * @param r the Relay to send through
+     * @param e a precompiled message
+     */
+    private static void round(Relay r, Encoder e) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            float f = (i & 1023)/1024f;
+            
+            r.send("/check/int", i);
+            r.send("/check/float", f);
+            r.send("/check/xy", f, 1 - f);
+            r.send(e, i & 15, f);
+            r.send(e, i & 15, f, 1 - f);
+            
+            r.beginBundle();
+            r.send("/check/float", f);
+            r.send(e, i & 15, f, f);
+            r.flushBundle();
+            
+            r.setCoalescing(true);
+            r.send(e, i & 15, f, f);
+            r.send(e, i & 15, f, 1 - f);
+            r.flushFrame();
+            r.setCoalescing(false);
+        }
+    }
+    
+    /**
+     * Sends one round of touches through a Dispatcher. Each iteration puts two Contacts down, moves them apart and back
+     * together again so that the Junction ends where it started, and lifts them, both sending immediately and once per frame.
+     * 
+     * @param d the Dispatcher to send through
+     * @param x the x coordinate of the center of the Junction
+     * @param y the y coordinate of the center of the Junction
+     */
+    private static void touch(Dispatcher d, float x, float y) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            int a = FIRST_ID + 2*(i & 1023);
+            int b = a + 1;
+            float f = 1 + (i & 15);
+            
+            d.setFrameSync((i & 1) == 1);
+            
+            d.addContact(a, x - 20, y);
+            d.addContact(b, x + 20, y);
+            d.flushFrame();
+            
+            d.updateContact(a, x - 20 - f, y + f);
+            d.updateContact(b, x + 20 + f, y - f);
+            d.flushFrame();
+            
+            d.updateContact(a, x - 20, y);
+            d.updateContact(b, x + 20, y);
+            d.flushFrame();
+            
+            d.removeContact(a);
+            d.removeContact(b);
+            d.flushFrame();
+        }
+        
+        d.setFrameSync(false);
+    }
+    
+    /**
+     * Returns the identifier of the sender thread of the Relay that sends to the specified port, or -1 if it is not running.
+     * 
+     * @param port the target port of the Relay
+     * @return the thread identifier
+     */
+    private static long findSender(int port) {
+        Thread[] all = new Thread[Thread.activeCount() + 8];
+        int n = Thread.enumerate(all);
+        
+        for (int i = 0; i < n; i++) {
+            if (all[i].getName().equals("Relay 127.0.0.1:" + port)) {
+                return all[i].getId();
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Checks one overflow policy, first sending straight through a Relay and then touching through a Dispatcher.
+     * 
+     * @param o the overflow policy
+     * @param port the port of the receiving socket
+     * @return the bytes allocated while counting
+     * @throws Exception if the bytes cannot be counted
+     */
+    private long check(Overflow o, int port) throws Exception {
+        Relay r = new Relay("127.0.0.1", port, Relay.DEFAULT_CAPACITY, o);
+        Encoder e = r.getEncoder("/check/contact");
+        
+        Dispatcher d = new Dispatcher(1000, 1000);
+        Junction j = d.createJunction(500, 500, 400, 400);
+        j.setTarget(r);
+        j.allowRotation(true);
+        j.allowScaling(true);
+        j.allowTranslation(true);
+        
+        for (Action action : Action.values()) {
+            j.mapMessage(action, "/check/" + action.name().toLowerCase());
+        }
+        
+        try {
+            long total = 0;
+            
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    if (pass == 0) {
+                        round(r, e);
+                    }
+                    else {
+                        touch(d, 500, 500);
+                    }
+                }
+                
+                long[] ids = {Thread.currentThread().getId(), findSender(port)};
+                long[] before = allocated(ids);
+                
+                for (int i = 0; i < COUNTED_ROUNDS; i++) {
+                    if (pass == 0) {
+                        round(r, e);
+                    }
+                    else {
+                        touch(d, 500, 500);
+                    }
+                }
+                
+                long[] after = allocated(ids);
+                long sending = after[0] - before[0] - probeBytes;
+                
+                // A sender thread that is not running allocates nothing
+                long sender = ids[1] < 0 ? 0 : Math.max(after[1] - before[1], 0);
+                
+                System.out.println(o + (pass == 0 ? " through the Relay: " : " through the Dispatcher: ") + sending
+                    + " bytes in the sending thread, " + sender + " bytes in the sender thread, " + r.getDroppedCount()
+                    + " messages dropped");
+                
+                total += sending + sender;
+            }
+            
+            return total;
+        }
+        finally {
+            r.close();
+        }
+    }
+    
+    /**
+     * Runs the check for every overflow policy.
+     * 
+     * @param args not used
+     * @throws Exception if the JVM cannot count allocated bytes per thread
+     */
+    public static void main(String[] args) throws Exception {
+        AllocationCheck check = new AllocationCheck();
+        
+        // Bound but never read, so that sends are not refused
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = receiver.socket().getLocalPort();
+        long total = 0;
+        
+        try {
+            for (Overflow o : Overflow.values()) {
+                total += check.check(o, port);
+            }
+        }
+        finally {
+            receiver.close();
+        }
+        
+        if (total > 0) {
+            System.out.println("FAILED: sending allocated " + total + " bytes");
+            System.exit(1);
+        }
+        
+        System.out.println("OK: sending did not allocate");
+    }
+}